@@ -9,8 +9,12 @@
 package nz.co.silvereye.photocat;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -46,6 +50,85 @@ public abstract class AbstractJob {
 
     private int threadCount = Runtime.getRuntime().availableProcessors();
 
+    /**
+     * <p>The quantity of threads that will be used to read the data
+     * of the source files in order to process them.  As with reading
+     * directories, this mostly waits on the storage.  The later stages
+     * of processing use the thread count.</p>
+     */
+
+    private int readThreadCount = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+
+    /**
+     * <p>The quantity of threads that will be used to read the
+     * directories of the source directory.  Reading directories is
+     * dominated by waiting on the storage rather than the CPU so,
+     * especially on network storage, it is worth having more of
+     * these than there are processors.</p>
+     */
+
+    private int traversalThreadCount = Math.max(4, Runtime.getRuntime().availableProcessors());
+
+    /**
+     * <p>The quantity of threads that will be used to read the
+     * meta-data (such as the EXIF data) from the source files while
+     * the source directory is being walked.</p>
+     */
+
+    private int metadataThreadCount = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * <p>If this file is supplied then the meta-data read from the
+     * source files is kept in an index in this file so that it does
+     * not need to be read again for unchanged files on later runs.</p>
+     */
+
+    private File metadataIndexFile;
+
+    /**
+     * <p>If this is true then the content of the source files is
+     * hashed as they are discovered and files with identical content
+     * are only thumbnailed once; the one thumbnail is then shared by
+     * all of the identical files.</p>
+     */
+
+    private boolean deduplicate = false;
+
+    /**
+     * <p>If any globs are supplied then only files with a path
+     * (relative to the source directory) matching one of them will
+     * be included.  A glob without a '/' is matched against the name
+     * of the file; see {@link DirectoryTraversal}.</p>
+     */
+
+    private final List<String> includeGlobs = new ArrayList<>();
+
+    /**
+     * <p>Files and directories with a path (relative to the source
+     * directory) matching any of these globs will be skipped.  An
+     * excluded directory is not descended into.  As with the include
+     * globs, a glob without a '/' is matched against the name.</p>
+     */
+
+    private final List<String> excludeGlobs = new ArrayList<>();
+
+    /**
+     * <p>The depth of sub-directories below the source directory that
+     * will be descended into looking for files.  A value of zero means
+     * only the files directly in the source directory are used.</p>
+     */
+
+    private int maximumDepth = Integer.MAX_VALUE;
+
+    /**
+     * <p>This is the order in which source files that have been supplied
+     * to the job are handed over to be thumbnailed.  Files that are
+     * discovered as the job runs are handed over as each directory is
+     * read and so are already grouped by directory.</p>
+     */
+
+    private ProcessingOrder processingOrder = ProcessingOrder.LOCALITY;
+
     /**
      * <p>This is the "longest length" of an image in pixels
      * as it will appear in the output.  Obviously, the larger
@@ -55,6 +138,90 @@ public abstract class AbstractJob {
 
     private int maximumWidthOrHeightPixels;
 
+    /**
+     * <p>Thumbnails may also be made at these further sizes.  All of the
+     * sizes are made from the one decoded image.</p>
+     */
+
+    private List<Integer> additionalMaximumWidthOrHeightPixels = Collections.emptyList();
+
+    /**
+     * <p>If this is true then a preview image that is embedded in the Exif
+     * data of a JPEG file is thumbnailed instead of the main image where
+     * the preview is large enough.  This is much quicker but the preview
+     * is often more heavily compressed than the main image.</p>
+     */
+
+    private boolean embeddedPreviewUsed = true;
+
+    /**
+     * <p>This is the way in which images are scaled down to the size of the
+     * thumbnails.</p>
+     */
+
+    private ScalingBackend scalingBackend = ScalingBackend.AREA_AVERAGING;
+
+    private ScalingQuality scalingQuality = ScalingQuality.QUALITY;
+
+    /**
+     * <p>This is the way in which the scaled images are encoded as the JPEG
+     * data of the thumbnails.</p>
+     */
+
+    private ThumbnailEncoder thumbnailEncoder = ThumbnailEncoder.BASELINE;
+
+    /**
+     * <p>This is the quantity of memory that may be used to keep the
+     * thumbnails of the job.  Once it is used up, further thumbnails are
+     * kept in a file.  The memory is outside of the heap where the JVM
+     * allows, by default, about as much as the heap; this is a quarter of
+     * the heap but no more than 128MB.</p>
+     */
+
+    private long thumbnailMemoryBudgetBytes = Math.min(Runtime.getRuntime().maxMemory() / 4, 128L * 1024 * 1024);
+
+    /**
+     * <p>This is where the thumbnails of the job are kept while the job is
+     * run.  It is created when it is first needed.</p>
+     */
+
+    private ThumbnailStore thumbnailStore = null;
+
+    /**
+     * <p>This keeps the arrays that back decoded images so that they can be
+     * used again for later images.  It keeps up to a quarter of the heap
+     * but no more than 512MB.</p>
+     */
+
+    private final ImageBufferPool imageBufferPool = new ImageBufferPool(
+            Math.min(Runtime.getRuntime().maxMemory() / 4, 512L * 1024 * 1024));
+
+    /**
+     * <p>This is the memory that images being decoded and scaled may use at
+     * the same time.  A file waits to be decoded until there is enough of
+     * the budget left for it so that a number of very large images are not
+     * decoded at once.  By default it is half of the heap.</p>
+     */
+
+    private long decodeMemoryBudgetBytes = Runtime.getRuntime().maxMemory() / 2;
+
+    private MemoryBudget decodeMemoryBudget = null;
+
+    /**
+     * <p>If this directory is supplied then thumbnails are kept in it
+     * between runs so that files which have not changed do not need to
+     * be thumbnailed again.  The directory may be shared between jobs
+     * and between processes.</p>
+     */
+
+    private File thumbnailCacheDirectory;
+
+    private long thumbnailCacheMaximumBytes = 1024L * 1024 * 1024;
+
+    private long thumbnailCacheMaximumMemoryBytes = 32L * 1024 * 1024;
+
+    private ThumbnailCache thumbnailCache = null;
+
     /**
      * <p>These are the source files for the job.</p>
      */
@@ -134,6 +301,124 @@ public abstract class AbstractJob {
         return threadCount;
     }
 
+    public int getReadThreadCount() {
+        return readThreadCount;
+    }
+
+    public int getTraversalThreadCount() {
+        return traversalThreadCount;
+    }
+
+    public int getMetadataThreadCount() {
+        return metadataThreadCount;
+    }
+
+    public File getMetadataIndexFile() {
+        return metadataIndexFile;
+    }
+
+    public boolean isDeduplicate() {
+        return deduplicate;
+    }
+
+    public List<String> getIncludeGlobs() {
+        return includeGlobs;
+    }
+
+    public List<String> getExcludeGlobs() {
+        return excludeGlobs;
+    }
+
+    public int getMaximumDepth() {
+        return maximumDepth;
+    }
+
+    public ProcessingOrder getProcessingOrder() {
+        return processingOrder;
+    }
+
+    public boolean isEmbeddedPreviewUsed() {
+        return embeddedPreviewUsed;
+    }
+
+    public ScalingBackend getScalingBackend() {
+        return scalingBackend;
+    }
+
+    public ScalingQuality getScalingQuality() {
+        return scalingQuality;
+    }
+
+    public ThumbnailEncoder getThumbnailEncoder() {
+        return thumbnailEncoder;
+    }
+
+    public long getThumbnailMemoryBudgetBytes() {
+        return thumbnailMemoryBudgetBytes;
+    }
+
+    public synchronized ThumbnailStore getThumbnailStore() {
+        if (null == thumbnailStore) {
+            thumbnailStore = new ThumbnailStore(thumbnailMemoryBudgetBytes);
+        }
+
+        return thumbnailStore;
+    }
+
+    public ImageBufferPool getImageBufferPool() {
+        return imageBufferPool;
+    }
+
+    public long getDecodeMemoryBudgetBytes() {
+        return decodeMemoryBudgetBytes;
+    }
+
+    public synchronized MemoryBudget getDecodeMemoryBudget() {
+        if (null == decodeMemoryBudget) {
+            decodeMemoryBudget = new MemoryBudget(decodeMemoryBudgetBytes);
+        }
+
+        return decodeMemoryBudget;
+    }
+
+    /**
+     * <p>Discards all of the thumbnails of the job.</p>
+     */
+
+    public synchronized void closeThumbnailStore() {
+        if (null != thumbnailStore) {
+            thumbnailStore.close();
+            thumbnailStore = null;
+        }
+    }
+
+    public File getThumbnailCacheDirectory() {
+        return thumbnailCacheDirectory;
+    }
+
+    public long getThumbnailCacheMaximumBytes() {
+        return thumbnailCacheMaximumBytes;
+    }
+
+    public long getThumbnailCacheMaximumMemoryBytes() {
+        return thumbnailCacheMaximumMemoryBytes;
+    }
+
+    /**
+     * <p>Returns NULL if there is no thumbnail cache directory.</p>
+     */
+
+    public synchronized ThumbnailCache getThumbnailCache() {
+        if (null == thumbnailCache && null != thumbnailCacheDirectory) {
+            thumbnailCache = new ThumbnailCache(
+                    thumbnailCacheDirectory.toPath(),
+                    thumbnailCacheMaximumBytes,
+                    thumbnailCacheMaximumMemoryBytes);
+        }
+
+        return thumbnailCache;
+    }
+
     public File getFfmpegBinary() {
         return ffmpegBinary;
     }
@@ -142,27 +427,135 @@ public abstract class AbstractJob {
         return sourceDirectory;
     }
 
-    public Collection<JobSourceFile> getSourceFiles() {
-        return sourceFiles.values();
+    /**
+     * <p>Returns a copy of the job's source files.  Source files may be
+     * added to the job from a number of threads while the job is being
+     * run.</p>
+     */
+
+    public synchronized List<JobSourceFile> getSourceFiles() {
+        return new ArrayList<>(sourceFiles.values());
     }
 
     public int getMaximumWidthOrHeightPixels() {
         return maximumWidthOrHeightPixels;
     }
 
-    public void addSourceFile(JobSourceFile jsf) {
+    public List<Integer> getAdditionalMaximumWidthOrHeightPixels() {
+        return additionalMaximumWidthOrHeightPixels;
+    }
+
+    /**
+     * <p>Returns the sizes at which thumbnails are made; the maximum width
+     * or height first and then any additional sizes that are different.</p>
+     */
+
+    public List<Integer> getThumbnailSizes() {
+        LinkedHashSet<Integer> result = new LinkedHashSet<>();
+        result.add(maximumWidthOrHeightPixels);
+        result.addAll(additionalMaximumWidthOrHeightPixels);
+        return new ArrayList<>(result);
+    }
+
+    public synchronized void addSourceFile(JobSourceFile jsf) {
         sourceFiles.put(jsf.getCode(), jsf);
     }
 
-    public void addSourceFiles(Collection<JobSourceFile> jsfs) {
+    public synchronized void addSourceFiles(Collection<JobSourceFile> jsfs) {
         for (JobSourceFile jsf : jsfs)
             addSourceFile(jsf);
     }
 
+    public synchronized void removeSourceFile(JobSourceFile jsf) {
+        sourceFiles.remove(jsf.getCode());
+    }
+
     public void setThreadCount(int value) {
         threadCount = value;
     }
 
+    public void setReadThreadCount(int value) {
+        readThreadCount = value;
+    }
+
+    public void setTraversalThreadCount(int value) {
+        traversalThreadCount = value;
+    }
+
+    public void setMetadataThreadCount(int value) {
+        metadataThreadCount = value;
+    }
+
+    public void setMetadataIndexFile(File value) {
+        metadataIndexFile = value;
+    }
+
+    public void setDeduplicate(boolean value) {
+        deduplicate = value;
+    }
+
+    public void setIncludeGlobs(Collection<String> value) {
+        includeGlobs.clear();
+        includeGlobs.addAll(value);
+    }
+
+    public void setExcludeGlobs(Collection<String> value) {
+        excludeGlobs.clear();
+        excludeGlobs.addAll(value);
+    }
+
+    public void setMaximumDepth(int value) {
+        maximumDepth = value;
+    }
+
+    public void setProcessingOrder(ProcessingOrder value) {
+        processingOrder = value;
+    }
+
+    public void setEmbeddedPreviewUsed(boolean value) {
+        embeddedPreviewUsed = value;
+    }
+
+    public void setScalingBackend(ScalingBackend value) {
+        scalingBackend = value;
+    }
+
+    public void setScalingQuality(ScalingQuality value) {
+        scalingQuality = value;
+    }
+
+    public void setThumbnailEncoder(ThumbnailEncoder value) {
+        thumbnailEncoder = value;
+    }
+
+    public void setThumbnailMemoryBudgetBytes(long value) {
+        thumbnailMemoryBudgetBytes = value;
+    }
+
+    /**
+     * <p>This should not be changed while the job is running.</p>
+     */
+
+    public synchronized void setDecodeMemoryBudgetBytes(long value) {
+        decodeMemoryBudgetBytes = value;
+        decodeMemoryBudget = null;
+    }
+
+    public synchronized void setThumbnailCacheDirectory(File value) {
+        thumbnailCacheDirectory = value;
+        thumbnailCache = null;
+    }
+
+    public synchronized void setThumbnailCacheMaximumBytes(long value) {
+        thumbnailCacheMaximumBytes = value;
+        thumbnailCache = null;
+    }
+
+    public synchronized void setThumbnailCacheMaximumMemoryBytes(long value) {
+        thumbnailCacheMaximumMemoryBytes = value;
+        thumbnailCache = null;
+    }
+
     public void setFfmpegBinary(File value) {
         ffmpegBinary = value;
     }
@@ -175,4 +568,8 @@ public abstract class AbstractJob {
         maximumWidthOrHeightPixels = value;
     }
 
+    public void setAdditionalMaximumWidthOrHeightPixels(List<Integer> value) {
+        additionalMaximumWidthOrHeightPixels = null == value ? Collections.emptyList() : List.copyOf(value);
+    }
+
 }
@@ -0,0 +1,446 @@
+/*
+ * Copyright 2016-2023, Andrew Lindesay. All Rights Reserved.
+ * Distributed under the terms of the MIT License.
+ *
+ * Authors:
+ *		Andrew Lindesay, apl@lindesay.co.nz
+ */
+
+package nz.co.silvereye.photocat;
+
+import com.google.common.base.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.util.Arrays;
+
+/**
+ * <p>This class scales an image down by averaging the area of the image
+ * that is covered by each pixel of the result.  The image is scaled
+ * vertically first; the rows of the image that are covered by a row of
+ * the result are added together, weighted by how much of each is covered,
+ * into a single row.  That row is then scaled horizontally.  Nearly all
+ * of the work is in adding the rows together and this is done with the
+ * Vector API where it is available; the Vector API is an incubator module
+ * and so the JVM has to be started with
+ * {@code --add-modules jdk.incubator.vector} for it to be used.  Otherwise
+ * the rows are added together in plain Java.</p>
+ *
+ * <p>The rows of the image can be supplied a band at a time, from the top
+ * down, so that a very large image does not have to be decoded all at
+ * once.  Only the few rows of the result that are being added into are
+ * held; a row of the result is finished as soon as the last row of the
+ * image that it covers has been supplied.</p>
+ *
+ * <p>With {@link ScalingQuality#SPEED}, each pixel of the result is the
+ * average of just four pixels of the image, two across and two down,
+ * rather than the whole area.  This is quicker but is more prone to
+ * aliasing.</p>
+ */
+
+public final class AreaAveragingScaler {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AreaAveragingScaler.class);
+
+    private static final String MODULE_VECTOR = "jdk.incubator.vector";
+
+    private static final RowAccumulator ROW_ACCUMULATOR = createRowAccumulator();
+
+    /**
+     * <p>Each thread keeps the rows into which rows of the image are added
+     * so that they are not allocated for each image.  They grow to the
+     * width of the widest image seen.</p>
+     */
+
+    private static final ThreadLocal<float[]> ACCUMULATORS = ThreadLocal.withInitial(() -> new float[0]);
+
+    private final int sourceWidth;
+
+    private final int sourceHeight;
+
+    private final int channels;
+
+    private final int sourceRowLength;
+
+    private final Contributions columns;
+
+    /**
+     * <p>For each row of the image, these are the rows of the result that
+     * it contributes to and the weights.</p>
+     */
+
+    private final Contributions rowsBySource;
+
+    /**
+     * <p>For each row of the result, this is the last row of the image that
+     * contributes to it.</p>
+     */
+
+    private final int[] lastSourceRows;
+
+    /**
+     * <p>The rows of the result that are being added into are held in this
+     * many accumulators which are used in turn.</p>
+     */
+
+    private final int accumulatorCount;
+
+    private final float[] accumulators;
+
+    private final BufferedImage result;
+
+    private final byte[] resultPixels;
+
+    private int nextSourceRow = 0;
+
+    private int nextOpenRow = 0;
+
+    private int nextFinishedRow = 0;
+
+    private AreaAveragingScaler(
+            int sourceWidth, int sourceHeight, int imageType,
+            int targetWidth, int targetHeight, ScalingQuality quality) {
+        this.sourceWidth = sourceWidth;
+        this.sourceHeight = sourceHeight;
+        this.channels = BufferedImage.TYPE_BYTE_GRAY == imageType ? 1 : 3;
+        this.sourceRowLength = sourceWidth * channels;
+        this.columns = Contributions.create(sourceWidth, targetWidth, quality);
+
+        Contributions rows = Contributions.create(sourceHeight, targetHeight, quality);
+        this.rowsBySource = rows.invert(sourceHeight);
+        this.lastSourceRows = new int[targetHeight];
+
+        for (int y = 0; y < targetHeight; y++) {
+            lastSourceRows[y] = rows.sourceIndexes[rows.offsets[y + 1] - 1];
+        }
+
+        this.accumulatorCount = rows.countMaximumOverlapping();
+
+        float[] threadAccumulators = ACCUMULATORS.get();
+
+        if (threadAccumulators.length < accumulatorCount * sourceRowLength) {
+            threadAccumulators = new float[accumulatorCount * sourceRowLength];
+            ACCUMULATORS.set(threadAccumulators);
+        }
+
+        this.accumulators = threadAccumulators;
+        this.result = new BufferedImage(targetWidth, targetHeight, imageType);
+        this.resultPixels = ((DataBufferByte) result.getRaster().getDataBuffer()).getData();
+    }
+
+    /**
+     * <p>This adds the unsigned bytes of a row of the image, multiplied by
+     * the weight, onto the accumulator at the offset.</p>
+     */
+
+    interface RowAccumulator {
+
+        void accumulate(
+                byte[] source, int sourceOffset, float weight,
+                float[] accumulator, int accumulatorOffset, int length);
+
+    }
+
+    private static RowAccumulator createRowAccumulator() {
+        if (ModuleLayer.boot().findModule(MODULE_VECTOR).isPresent()) {
+            try {
+                RowAccumulator result = new VectorRowAccumulator();
+                LOGGER.info("will scale images using the vector api");
+                return result;
+            } catch (LinkageError le) {
+                LOGGER.warn("unable to use the vector api to scale images", le);
+            }
+        }
+
+        LOGGER.info("will scale images without the vector api; start the jvm with '--add-modules {}' to use it",
+                MODULE_VECTOR);
+        return AreaAveragingScaler::accumulateScalar;
+    }
+
+    private static void accumulateScalar(
+            byte[] source, int sourceOffset, float weight,
+            float[] accumulator, int accumulatorOffset, int length) {
+        for (int i = 0; i < length; i++) {
+            accumulator[accumulatorOffset + i] += weight * (source[sourceOffset + i] & 0xFF);
+        }
+    }
+
+    /**
+     * <p>Scales the image so that its longest edge is the size supplied.
+     * NULL is returned if the image would not be made smaller in both
+     * directions.</p>
+     */
+
+    public static BufferedImage scale(BufferedImage bi, int maximumWidthOrHeight, ScalingQuality quality) {
+        Preconditions.checkArgument(null!=bi, "the image must be provided");
+
+        BufferedImage source = toByteInterleaved(bi);
+        AreaAveragingScaler scaler = create(
+                source.getWidth(), source.getHeight(), source.getType(), maximumWidthOrHeight, quality);
+
+        if (null == scaler) {
+            return null;
+        }
+
+        scaler.addRows(source);
+        return scaler.getResult();
+    }
+
+    /**
+     * <p>Creates a scaler to which the rows of an image of the size and type
+     * supplied can be added.  The shape of the result is worked out in the
+     * same way as imgscalr does it.  NULL is returned if the image would not
+     * be made smaller in both directions.</p>
+     */
+
+    public static AreaAveragingScaler create(
+            int sourceWidth, int sourceHeight, int imageType,
+            int maximumWidthOrHeight, ScalingQuality quality) {
+        Preconditions.checkArgument(sourceWidth > 0 && sourceHeight > 0, "the source size must be positive");
+        Preconditions.checkArgument(ImageBufferPool.isSupported(imageType), "the image type is not supported");
+        Preconditions.checkArgument(maximumWidthOrHeight > 0, "the maximum width or height must be positive");
+        Preconditions.checkArgument(null!=quality, "the quality must be provided");
+
+        float ratio = (float) sourceHeight / (float) sourceWidth;
+        int targetWidth;
+        int targetHeight;
+
+        if (ratio <= 1) {
+            targetWidth = maximumWidthOrHeight;
+            targetHeight = Math.max(1, Math.round(maximumWidthOrHeight * ratio));
+        } else {
+            targetHeight = maximumWidthOrHeight;
+            targetWidth = Math.max(1, Math.round(maximumWidthOrHeight / ratio));
+        }
+
+        if (targetWidth >= sourceWidth || targetHeight >= sourceHeight) {
+            return null;
+        }
+
+        return new AreaAveragingScaler(sourceWidth, sourceHeight, imageType, targetWidth, targetHeight, quality);
+    }
+
+    /**
+     * <p>Adds the rows of the band which follow on from the rows that have
+     * already been added.  The band must be the width of the image.</p>
+     */
+
+    public void addRows(BufferedImage band) {
+        Preconditions.checkArgument(null!=band, "the band must be provided");
+        Preconditions.checkArgument(band.getWidth() == sourceWidth, "the band must be the width of the image");
+        Preconditions.checkArgument(
+                nextSourceRow + band.getHeight() <= sourceHeight,
+                "the band goes beyond the bottom of the image");
+
+        BufferedImage source = toByteInterleaved(band);
+        Preconditions.checkArgument(source.getRaster().getNumBands() == channels, "the band is of the wrong type");
+        byte[] sourcePixels = ((DataBufferByte) source.getRaster().getDataBuffer()).getData();
+
+        for (int row = 0; row < band.getHeight(); row++) {
+            int sourceRow = nextSourceRow++;
+
+            for (int k = rowsBySource.offsets[sourceRow]; k < rowsBySource.offsets[sourceRow + 1]; k++) {
+                int y = rowsBySource.sourceIndexes[k];
+
+                // the first contribution to a row of the result starts it off in
+                // an accumulator that the earlier rows have finished with.
+
+                if (y == nextOpenRow) {
+                    Arrays.fill(accumulators, getAccumulatorOffset(y), getAccumulatorOffset(y) + sourceRowLength, 0f);
+                    nextOpenRow++;
+                }
+
+                ROW_ACCUMULATOR.accumulate(
+                        sourcePixels, row * sourceRowLength, rowsBySource.weights[k],
+                        accumulators, getAccumulatorOffset(y), sourceRowLength);
+            }
+
+            while (nextFinishedRow < lastSourceRows.length && lastSourceRows[nextFinishedRow] <= sourceRow) {
+                finishRow(nextFinishedRow++);
+            }
+        }
+    }
+
+    private int getAccumulatorOffset(int y) {
+        return (y % accumulatorCount) * sourceRowLength;
+    }
+
+    /**
+     * <p>Scales the accumulated row horizontally into the result.</p>
+     */
+
+    private void finishRow(int y) {
+        int accumulatorOffset = getAccumulatorOffset(y);
+        int targetWidth = result.getWidth();
+        int resultOffset = y * targetWidth * channels;
+
+        for (int x = 0; x < targetWidth; x++) {
+            for (int c = 0; c < channels; c++) {
+                float sum = 0f;
+
+                for (int k = columns.offsets[x]; k < columns.offsets[x + 1]; k++) {
+                    sum += columns.weights[k] * accumulators[accumulatorOffset + (columns.sourceIndexes[k] * channels) + c];
+                }
+
+                int value = Math.round(sum);
+                resultPixels[resultOffset++] = (byte) (value < 0 ? 0 : Math.min(value, 255));
+            }
+        }
+    }
+
+    /**
+     * <p>Returns the scaled image once all of the rows of the image have
+     * been added.</p>
+     */
+
+    public BufferedImage getResult() {
+        Preconditions.checkState(nextSourceRow == sourceHeight, "not all of the rows of the image have been added");
+        return result;
+    }
+
+    /**
+     * <p>The scaling works on images that have a byte for each sample, one
+     * pixel after the other.  This is how ImageIO decodes JPEG images so
+     * normally there is nothing to do here; other images are drawn into
+     * such an image first.</p>
+     */
+
+    private static BufferedImage toByteInterleaved(BufferedImage bi) {
+        if (ImageBufferPool.isSupported(bi.getType()) && null == bi.getRaster().getParent()) {
+            return bi;
+        }
+
+        BufferedImage result = new BufferedImage(bi.getWidth(), bi.getHeight(), BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D graphics = result.createGraphics();
+
+        try {
+            graphics.drawImage(bi, 0, 0, null);
+        } finally {
+            graphics.dispose();
+        }
+
+        return result;
+    }
+
+    /**
+     * <p>For each pixel of the result along one direction, these are the
+     * pixels of the image that contribute to it and their weights.  The
+     * contributions to pixel {@code i} are at the indexes from
+     * {@code offsets[i]} up to {@code offsets[i + 1]}.</p>
+     */
+
+    private record Contributions(int[] offsets, int[] sourceIndexes, float[] weights) {
+
+        static Contributions create(int sourceLength, int targetLength, ScalingQuality quality) {
+            double scale = (double) sourceLength / targetLength;
+            int maximumCount = ScalingQuality.SPEED == quality ? 2 : (int) Math.ceil(scale) + 1;
+            int[] offsets = new int[targetLength + 1];
+            int[] sourceIndexes = new int[targetLength * maximumCount];
+            float[] weights = new float[targetLength * maximumCount];
+            int k = 0;
+
+            for (int i = 0; i < targetLength; i++) {
+                double start = i * scale;
+                double end = Math.min(sourceLength, (i + 1) * scale);
+
+                offsets[i] = k;
+
+                if (ScalingQuality.SPEED == quality) {
+                    int first = Math.min(sourceLength - 1, (int) (start + (scale * 0.25)));
+                    int second = Math.min(sourceLength - 1, (int) (start + (scale * 0.75)));
+
+                    sourceIndexes[k] = first;
+                    weights[k++] = first == second ? 1f : 0.5f;
+
+                    if (first != second) {
+                        sourceIndexes[k] = second;
+                        weights[k++] = 0.5f;
+                    }
+                } else {
+                    int first = k;
+                    double total = 0;
+
+                    for (int s = (int) Math.floor(start); s < end; s++) {
+                        double coverage = Math.min(end, s + 1) - Math.max(start, s);
+
+                        if (coverage > 0) {
+                            sourceIndexes[k] = s;
+                            weights[k++] = (float) coverage;
+                            total += coverage;
+                        }
+                    }
+
+                    for (int j = first; j < k; j++) {
+                        weights[j] = (float) (weights[j] / total);
+                    }
+                }
+            }
+
+            offsets[targetLength] = k;
+            return new Contributions(offsets, sourceIndexes, weights);
+        }
+
+        /**
+         * <p>Returns the same contributions the other way around; for each
+         * pixel of the image, the pixels of the result that it contributes
+         * to in order.</p>
+         */
+
+        Contributions invert(int sourceLength) {
+            int targetLength = offsets.length - 1;
+            int[] invertedOffsets = new int[sourceLength + 1];
+            int[] targetIndexes = new int[offsets[targetLength]];
+            float[] invertedWeights = new float[offsets[targetLength]];
+
+            for (int k = 0; k < offsets[targetLength]; k++) {
+                invertedOffsets[sourceIndexes[k] + 1]++;
+            }
+
+            for (int s = 0; s < sourceLength; s++) {
+                invertedOffsets[s + 1] += invertedOffsets[s];
+            }
+
+            int[] next = Arrays.copyOf(invertedOffsets, sourceLength);
+
+            for (int i = 0; i < targetLength; i++) {
+                for (int k = offsets[i]; k < offsets[i + 1]; k++) {
+                    int position = next[sourceIndexes[k]]++;
+                    targetIndexes[position] = i;
+                    invertedWeights[position] = weights[k];
+                }
+            }
+
+            return new Contributions(invertedOffsets, targetIndexes, invertedWeights);
+        }
+
+        /**
+         * <p>Returns the largest number of pixels of the result that have
+         * contributions from some one pixel of the image or from pixels
+         * either side of it; this is how many rows of the result may be
+         * being added into at once.</p>
+         */
+
+        int countMaximumOverlapping() {
+            int targetLength = offsets.length - 1;
+            int result = 1;
+            int first = 0;
+
+            for (int i = 0; i < targetLength; i++) {
+                int start = sourceIndexes[offsets[i]];
+
+                while (sourceIndexes[offsets[first + 1] - 1] < start) {
+                    first++;
+                }
+
+                result = Math.max(result, i - first + 1);
+            }
+
+            return result;
+        }
+
+    }
+
+}
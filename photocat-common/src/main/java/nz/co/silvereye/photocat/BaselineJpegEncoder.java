@@ -0,0 +1,776 @@
+/*
+ * Copyright 2016-2023, Andrew Lindesay. All Rights Reserved.
+ * Distributed under the terms of the MIT License.
+ *
+ * Authors:
+ *		Andrew Lindesay, apl@lindesay.co.nz
+ */
+
+package nz.co.silvereye.photocat;
+
+import com.google.common.base.Preconditions;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.Raster;
+import java.util.Arrays;
+
+/**
+ * <p>This class encodes small images as baseline JPEG data.  It is much
+ * simpler than the ImageIO JPEG writer; there is no meta-data and no
+ * stream and the tables are worked out once.  The output is the same form
+ * of image that the ImageIO writer produces by default; a JFIF image with
+ * the example quantization tables from the JPEG standard scaled to the
+ * quality, the example Huffman tables from the standard and, for colour
+ * images, the chrominance sampled at half the resolution in both
+ * directions.  Grey images are encoded with just the one component.</p>
+ *
+ * <p>The forward DCT is the floating point version of the AAN algorithm,
+ * as libjpeg has it, with the scaling that it leaves folded into the
+ * quantization.  An instance keeps its buffers between images so it
+ * should be used by one thread at a time.</p>
+ */
+
+public final class BaselineJpegEncoder {
+
+    /**
+     * <p>These are the tables in section K.1 of the JPEG standard in their
+     * natural order.</p>
+     */
+
+    private static final int[] LUMINANCE_QUANTIZATION = {
+            16, 11, 10, 16, 24, 40, 51, 61,
+            12, 12, 14, 19, 26, 58, 60, 55,
+            14, 13, 16, 24, 40, 57, 69, 56,
+            14, 17, 22, 29, 51, 87, 80, 62,
+            18, 22, 37, 56, 68, 109, 103, 77,
+            24, 35, 55, 64, 81, 104, 113, 92,
+            49, 64, 78, 87, 103, 121, 120, 101,
+            72, 92, 95, 98, 112, 100, 103, 99
+    };
+
+    private static final int[] CHROMINANCE_QUANTIZATION = {
+            17, 18, 24, 47, 99, 99, 99, 99,
+            18, 21, 26, 66, 99, 99, 99, 99,
+            24, 26, 56, 99, 99, 99, 99, 99,
+            47, 66, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99
+    };
+
+    /**
+     * <p>These are the Huffman tables in section K.3 of the JPEG standard;
+     * the count of codes of each length from one to sixteen bits followed
+     * by the values.</p>
+     */
+
+    private static final int[] DC_LUMINANCE_BITS = { 0, 1, 5, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0, 0, 0 };
+
+    private static final int[] DC_LUMINANCE_VALUES = { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11 };
+
+    private static final int[] DC_CHROMINANCE_BITS = { 0, 3, 1, 1, 1, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0 };
+
+    private static final int[] DC_CHROMINANCE_VALUES = { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11 };
+
+    private static final int[] AC_LUMINANCE_BITS = { 0, 2, 1, 3, 3, 2, 4, 3, 5, 5, 4, 4, 0, 0, 1, 0x7d };
+
+    private static final int[] AC_LUMINANCE_VALUES = {
+            0x01, 0x02, 0x03, 0x00, 0x04, 0x11, 0x05, 0x12, 0x21, 0x31, 0x41, 0x06, 0x13, 0x51, 0x61, 0x07,
+            0x22, 0x71, 0x14, 0x32, 0x81, 0x91, 0xa1, 0x08, 0x23, 0x42, 0xb1, 0xc1, 0x15, 0x52, 0xd1, 0xf0,
+            0x24, 0x33, 0x62, 0x72, 0x82, 0x09, 0x0a, 0x16, 0x17, 0x18, 0x19, 0x1a, 0x25, 0x26, 0x27, 0x28,
+            0x29, 0x2a, 0x34, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49,
+            0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69,
+            0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79, 0x7a, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89,
+            0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5, 0xa6, 0xa7,
+            0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3, 0xc4, 0xc5,
+            0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda, 0xe1, 0xe2,
+            0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf1, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+            0xf9, 0xfa
+    };
+
+    private static final int[] AC_CHROMINANCE_BITS = { 0, 2, 1, 2, 4, 4, 3, 4, 7, 5, 4, 4, 0, 1, 2, 0x77 };
+
+    private static final int[] AC_CHROMINANCE_VALUES = {
+            0x00, 0x01, 0x02, 0x03, 0x11, 0x04, 0x05, 0x21, 0x31, 0x06, 0x12, 0x41, 0x51, 0x07, 0x61, 0x71,
+            0x13, 0x22, 0x32, 0x81, 0x08, 0x14, 0x42, 0x91, 0xa1, 0xb1, 0xc1, 0x09, 0x23, 0x33, 0x52, 0xf0,
+            0x15, 0x62, 0x72, 0xd1, 0x0a, 0x16, 0x24, 0x34, 0xe1, 0x25, 0xf1, 0x17, 0x18, 0x19, 0x1a, 0x26,
+            0x27, 0x28, 0x29, 0x2a, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48,
+            0x49, 0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68,
+            0x69, 0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79, 0x7a, 0x82, 0x83, 0x84, 0x85, 0x86, 0x87,
+            0x88, 0x89, 0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5,
+            0xa6, 0xa7, 0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3,
+            0xc4, 0xc5, 0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda,
+            0xe2, 0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+            0xf9, 0xfa
+    };
+
+    private static final HuffmanTable DC_LUMINANCE = new HuffmanTable(DC_LUMINANCE_BITS, DC_LUMINANCE_VALUES);
+
+    private static final HuffmanTable DC_CHROMINANCE = new HuffmanTable(DC_CHROMINANCE_BITS, DC_CHROMINANCE_VALUES);
+
+    private static final HuffmanTable AC_LUMINANCE = new HuffmanTable(AC_LUMINANCE_BITS, AC_LUMINANCE_VALUES);
+
+    private static final HuffmanTable AC_CHROMINANCE = new HuffmanTable(AC_CHROMINANCE_BITS, AC_CHROMINANCE_VALUES);
+
+    /**
+     * <p>The AAN forward DCT leaves each coefficient multiplied by these
+     * factors for its row and column, and by eight.</p>
+     */
+
+    private static final double[] AAN_SCALE_FACTORS = {
+            1.0, 1.387039845, 1.306562965, 1.175875602,
+            1.0, 0.785694958, 0.541196100, 0.275899379
+    };
+
+    /**
+     * <p>This is the quality that the ImageIO JPEG writer uses by default.
+     * </p>
+     */
+
+    public static final int DEFAULT_QUALITY = 75;
+
+    private final int[] luminanceQuantization;
+
+    private final int[] chrominanceQuantization;
+
+    private final float[] luminanceDivisors;
+
+    private final float[] chrominanceDivisors;
+
+    // these are kept between images so that they are not allocated for each
+    // one; they grow to suit the largest image.
+
+    private float[] planeY = new float[0];
+
+    private float[] planeCb = new float[0];
+
+    private float[] planeCr = new float[0];
+
+    private int[] rowPixels = new int[0];
+
+    private final float[] block = new float[64];
+
+    private byte[] output = new byte[16 * 1024];
+
+    private int outputLength = 0;
+
+    private final int[] coefficients = new int[64];
+
+    private long bitBuffer = 0;
+
+    private int bitCount = 0;
+
+    public BaselineJpegEncoder() {
+        this(DEFAULT_QUALITY);
+    }
+
+    /**
+     * <p>The quality is from 1 to 100 and scales the quantization tables in
+     * the same way as libjpeg does.</p>
+     */
+
+    public BaselineJpegEncoder(int quality) {
+        Preconditions.checkArgument(quality >= 1 && quality <= 100, "the quality must be from 1 to 100");
+        int percentage = quality < 50 ? 5000 / quality : 200 - (quality * 2);
+
+        this.luminanceQuantization = scaleQuantization(LUMINANCE_QUANTIZATION, percentage);
+        this.chrominanceQuantization = scaleQuantization(CHROMINANCE_QUANTIZATION, percentage);
+        this.luminanceDivisors = createDivisors(luminanceQuantization);
+        this.chrominanceDivisors = createDivisors(chrominanceQuantization);
+    }
+
+    private static int[] scaleQuantization(int[] table, int percentage) {
+        int[] result = new int[64];
+
+        for (int i = 0; i < 64; i++) {
+            result[i] = Math.max(1, Math.min(255, ((table[i] * percentage) + 50) / 100));
+        }
+
+        return result;
+    }
+
+    private static float[] createDivisors(int[] quantization) {
+        float[] result = new float[64];
+
+        for (int v = 0; v < 8; v++) {
+            for (int u = 0; u < 8; u++) {
+                result[(v * 8) + u] = (float) (1.0 / (quantization[(v * 8) + u]
+                        * AAN_SCALE_FACTORS[v] * AAN_SCALE_FACTORS[u] * 8.0));
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * <p>Encodes the image and returns the JPEG data.  Images backed by a
+     * byte for each sample, such as those that ImageIO decodes JPEG images
+     * into, are read directly; other images are read a row at a time as
+     * RGB.</p>
+     */
+
+    public byte[] encode(BufferedImage bi) {
+        Preconditions.checkArgument(null!=bi, "the image must be provided");
+
+        int width = bi.getWidth();
+        int height = bi.getHeight();
+        Preconditions.checkArgument(width <= 0xFFFF && height <= 0xFFFF, "the image is too large to encode");
+        boolean grey = BufferedImage.TYPE_BYTE_GRAY == bi.getType();
+
+        // the planes are made a whole number of blocks, or of blocks of
+        // chrominance, across and down by repeating the last column and row.
+
+        int mcuSize = grey ? 8 : 16;
+        int paddedWidth = ((width + mcuSize - 1) / mcuSize) * mcuSize;
+        int paddedHeight = ((height + mcuSize - 1) / mcuSize) * mcuSize;
+
+        readPlanes(bi, grey, paddedWidth, paddedHeight);
+
+        outputLength = 0;
+        bitBuffer = 0;
+        bitCount = 0;
+
+        writeHeaders(width, height, grey);
+
+        if (grey) {
+            int previousDc = 0;
+
+            for (int y = 0; y < paddedHeight; y += 8) {
+                for (int x = 0; x < paddedWidth; x += 8) {
+                    previousDc = encodeBlock(planeY, paddedWidth, x, y,
+                            luminanceDivisors, previousDc, DC_LUMINANCE, AC_LUMINANCE);
+                }
+            }
+        } else {
+            int chrominanceWidth = paddedWidth / 2;
+            int previousDcY = 0;
+            int previousDcCb = 0;
+            int previousDcCr = 0;
+
+            for (int y = 0; y < paddedHeight; y += 16) {
+                for (int x = 0; x < paddedWidth; x += 16) {
+                    previousDcY = encodeBlock(planeY, paddedWidth, x, y,
+                            luminanceDivisors, previousDcY, DC_LUMINANCE, AC_LUMINANCE);
+                    previousDcY = encodeBlock(planeY, paddedWidth, x + 8, y,
+                            luminanceDivisors, previousDcY, DC_LUMINANCE, AC_LUMINANCE);
+                    previousDcY = encodeBlock(planeY, paddedWidth, x, y + 8,
+                            luminanceDivisors, previousDcY, DC_LUMINANCE, AC_LUMINANCE);
+                    previousDcY = encodeBlock(planeY, paddedWidth, x + 8, y + 8,
+                            luminanceDivisors, previousDcY, DC_LUMINANCE, AC_LUMINANCE);
+                    previousDcCb = encodeBlock(planeCb, chrominanceWidth, x / 2, y / 2,
+                            chrominanceDivisors, previousDcCb, DC_CHROMINANCE, AC_CHROMINANCE);
+                    previousDcCr = encodeBlock(planeCr, chrominanceWidth, x / 2, y / 2,
+                            chrominanceDivisors, previousDcCr, DC_CHROMINANCE, AC_CHROMINANCE);
+                }
+            }
+        }
+
+        // the last byte is padded out with one bits.
+
+        flushBits();
+
+        if (bitCount > 0) {
+            writeBits((1 << (8 - bitCount)) - 1, 8 - bitCount);
+            flushBits();
+        }
+
+        writeMarker(0xD9); // EOI
+        return Arrays.copyOf(output, outputLength);
+    }
+
+    // ----------------------------------------------
+    // PLANES
+    // ----------------------------------------------
+
+    /**
+     * <p>Reads the image into the planes, less 128 so that the samples are
+     * centred on zero as the DCT expects.  For a colour image the pixels
+     * are converted into YCbCr and the chrominance planes are then halved
+     * in each direction by averaging.</p>
+     */
+
+    private void readPlanes(BufferedImage bi, boolean grey, int paddedWidth, int paddedHeight) {
+        int width = bi.getWidth();
+        int height = bi.getHeight();
+        int planeLength = paddedWidth * paddedHeight;
+
+        if (planeY.length < planeLength) {
+            planeY = new float[planeLength];
+        }
+
+        if (!grey && planeCb.length < planeLength) {
+            planeCb = new float[planeLength];
+            planeCr = new float[planeLength];
+        }
+
+        Raster raster = bi.getRaster();
+        boolean direct = ImageBufferPool.isSupported(bi.getType())
+                && raster.getDataBuffer() instanceof DataBufferByte
+                && raster.getSampleModel() instanceof ComponentSampleModel;
+
+        if (direct) {
+            readPlanesDirect(bi, grey, paddedWidth);
+        } else {
+            readPlanesRgb(bi, paddedWidth);
+        }
+
+        // the last column and row are repeated out to the padded size.
+
+        for (int y = 0; y < height; y++) {
+            int offset = y * paddedWidth;
+            fillRow(offset + width, offset + paddedWidth, offset + width - 1, grey);
+        }
+
+        for (int y = height; y < paddedHeight; y++) {
+            int offset = y * paddedWidth;
+            int sourceOffset = (height - 1) * paddedWidth;
+            System.arraycopy(planeY, sourceOffset, planeY, offset, paddedWidth);
+
+            if (!grey) {
+                System.arraycopy(planeCb, sourceOffset, planeCb, offset, paddedWidth);
+                System.arraycopy(planeCr, sourceOffset, planeCr, offset, paddedWidth);
+            }
+        }
+
+        if (!grey) {
+            downsample(planeCb, paddedWidth, paddedHeight);
+            downsample(planeCr, paddedWidth, paddedHeight);
+        }
+    }
+
+    private void fillRow(int from, int to, int sourceIndex, boolean grey) {
+        Arrays.fill(planeY, from, to, planeY[sourceIndex]);
+
+        if (!grey) {
+            Arrays.fill(planeCb, from, to, planeCb[sourceIndex]);
+            Arrays.fill(planeCr, from, to, planeCr[sourceIndex]);
+        }
+    }
+
+    private void readPlanesDirect(BufferedImage bi, boolean grey, int paddedWidth) {
+        Raster raster = bi.getRaster();
+        ComponentSampleModel sampleModel = (ComponentSampleModel) raster.getSampleModel();
+        DataBufferByte dataBuffer = (DataBufferByte) raster.getDataBuffer();
+        byte[] data = dataBuffer.getData();
+        int pixelStride = sampleModel.getPixelStride();
+        int scanlineStride = sampleModel.getScanlineStride();
+        int[] bandOffsets = sampleModel.getBandOffsets();
+        int base = dataBuffer.getOffset()
+                - (raster.getSampleModelTranslateY() * scanlineStride)
+                - (raster.getSampleModelTranslateX() * pixelStride);
+        int width = bi.getWidth();
+        int height = bi.getHeight();
+
+        for (int y = 0; y < height; y++) {
+            int rowOffset = base + (y * scanlineStride);
+            int planeOffset = y * paddedWidth;
+
+            if (grey) {
+                for (int x = 0; x < width; x++) {
+                    planeY[planeOffset + x] = (data[rowOffset + (x * pixelStride) + bandOffsets[0]] & 0xFF) - 128f;
+                }
+            } else {
+                for (int x = 0; x < width; x++) {
+                    int pixelOffset = rowOffset + (x * pixelStride);
+                    writeYCbCr(planeOffset + x,
+                            data[pixelOffset + bandOffsets[0]] & 0xFF,
+                            data[pixelOffset + bandOffsets[1]] & 0xFF,
+                            data[pixelOffset + bandOffsets[2]] & 0xFF);
+                }
+            }
+        }
+    }
+
+    private void readPlanesRgb(BufferedImage bi, int paddedWidth) {
+        int width = bi.getWidth();
+        int height = bi.getHeight();
+
+        if (rowPixels.length < width) {
+            rowPixels = new int[width];
+        }
+
+        for (int y = 0; y < height; y++) {
+            bi.getRGB(0, y, width, 1, rowPixels, 0, width);
+            int planeOffset = y * paddedWidth;
+
+            for (int x = 0; x < width; x++) {
+                int rgb = rowPixels[x];
+                writeYCbCr(planeOffset + x, (rgb >> 16) & 0xFF, (rgb >> 8) & 0xFF, rgb & 0xFF);
+            }
+        }
+    }
+
+    private void writeYCbCr(int index, int r, int g, int b) {
+        planeY[index] = (0.299f * r) + (0.587f * g) + (0.114f * b) - 128f;
+        planeCb[index] = (-0.168736f * r) - (0.331264f * g) + (0.5f * b);
+        planeCr[index] = (0.5f * r) - (0.418688f * g) - (0.081312f * b);
+    }
+
+    /**
+     * <p>Halves the plane in each direction, in place, so that it is then
+     * half the padded width across.</p>
+     */
+
+    private static void downsample(float[] plane, int paddedWidth, int paddedHeight) {
+        int halfWidth = paddedWidth / 2;
+
+        for (int y = 0; y < paddedHeight / 2; y++) {
+            int top = (y * 2) * paddedWidth;
+            int bottom = top + paddedWidth;
+
+            for (int x = 0; x < halfWidth; x++) {
+                int left = x * 2;
+                plane[(y * halfWidth) + x] = 0.25f * (plane[top + left] + plane[top + left + 1]
+                        + plane[bottom + left] + plane[bottom + left + 1]);
+            }
+        }
+    }
+
+    // ----------------------------------------------
+    // BLOCKS
+    // ----------------------------------------------
+
+    /**
+     * <p>Transforms, quantizes and writes the 8x8 block at the position in
+     * the plane and returns its DC coefficient which the next block's DC
+     * coefficient is coded relative to.</p>
+     */
+
+    private int encodeBlock(
+            float[] plane, int planeWidth, int x, int y,
+            float[] divisors, int previousDc, HuffmanTable dcTable, HuffmanTable acTable) {
+        for (int row = 0; row < 8; row++) {
+            System.arraycopy(plane, ((y + row) * planeWidth) + x, block, row * 8, 8);
+        }
+
+        forwardDct(block);
+
+        for (int k = 0; k < 64; k++) {
+            int natural = ScaledJpegDecoder.ZIGZAG_TO_NATURAL[k];
+            coefficients[k] = quantize(block[natural] * divisors[natural]);
+        }
+
+        int dc = coefficients[0];
+        writeValue(dcTable, 0, dc - previousDc);
+
+        int run = 0;
+
+        for (int k = 1; k < 64; k++) {
+            int coefficient = coefficients[k];
+
+            if (0 == coefficient) {
+                run++;
+                continue;
+            }
+
+            while (run > 15) {
+                writeBits(acTable.codes[0xF0], acTable.sizes[0xF0]); // ZRL
+                run -= 16;
+            }
+
+            writeValue(acTable, run, coefficient);
+            run = 0;
+        }
+
+        if (run > 0) {
+            writeBits(acTable.codes[0x00], acTable.sizes[0x00]); // EOB
+        }
+
+        return dc;
+    }
+
+    /**
+     * <p>Writes the code for the run and the category of the value followed
+     * by the bits of the value; a negative value is written less one.</p>
+     */
+
+    private void writeValue(HuffmanTable table, int run, int value) {
+        int category = category(value);
+        int symbol = (run << 4) | category;
+        int bits = (value < 0 ? value - 1 : value) & ((1 << category) - 1);
+        writeBits((table.codes[symbol] << category) | bits, table.sizes[symbol] + category);
+    }
+
+    private static int quantize(float value) {
+        return (int) (value < 0f ? value - 0.5f : value + 0.5f);
+    }
+
+    /**
+     * <p>Returns the number of bits needed for the magnitude of the value.
+     * </p>
+     */
+
+    private static int category(int value) {
+        return 32 - Integer.numberOfLeadingZeros(Math.abs(value));
+    }
+
+    /**
+     * <p>This is the floating point AAN forward DCT from libjpeg; the rows
+     * and then the columns are transformed in place.</p>
+     */
+
+    private static void forwardDct(float[] data) {
+        for (int i = 0; i < 8; i++) {
+            forwardDct1D(data, i * 8, 1);
+        }
+
+        for (int i = 0; i < 8; i++) {
+            forwardDct1D(data, i, 8);
+        }
+    }
+
+    private static void forwardDct1D(float[] d, int offset, int stride) {
+        int i0 = offset;
+        int i1 = offset + stride;
+        int i2 = offset + (2 * stride);
+        int i3 = offset + (3 * stride);
+        int i4 = offset + (4 * stride);
+        int i5 = offset + (5 * stride);
+        int i6 = offset + (6 * stride);
+        int i7 = offset + (7 * stride);
+
+        float tmp0 = d[i0] + d[i7];
+        float tmp7 = d[i0] - d[i7];
+        float tmp1 = d[i1] + d[i6];
+        float tmp6 = d[i1] - d[i6];
+        float tmp2 = d[i2] + d[i5];
+        float tmp5 = d[i2] - d[i5];
+        float tmp3 = d[i3] + d[i4];
+        float tmp4 = d[i3] - d[i4];
+
+        // even part
+
+        float tmp10 = tmp0 + tmp3;
+        float tmp13 = tmp0 - tmp3;
+        float tmp11 = tmp1 + tmp2;
+        float tmp12 = tmp1 - tmp2;
+
+        d[i0] = tmp10 + tmp11;
+        d[i4] = tmp10 - tmp11;
+
+        float z1 = (tmp12 + tmp13) * 0.707106781f;
+        d[i2] = tmp13 + z1;
+        d[i6] = tmp13 - z1;
+
+        // odd part
+
+        tmp10 = tmp4 + tmp5;
+        tmp11 = tmp5 + tmp6;
+        tmp12 = tmp6 + tmp7;
+
+        float z5 = (tmp10 - tmp12) * 0.382683433f;
+        float z2 = (0.541196100f * tmp10) + z5;
+        float z4 = (1.306562965f * tmp12) + z5;
+        float z3 = tmp11 * 0.707106781f;
+        float z11 = tmp7 + z3;
+        float z13 = tmp7 - z3;
+
+        d[i5] = z13 + z2;
+        d[i3] = z13 - z2;
+        d[i1] = z11 + z4;
+        d[i7] = z11 - z4;
+    }
+
+    // ----------------------------------------------
+    // OUTPUT
+    // ----------------------------------------------
+
+    private void writeHeaders(int width, int height, boolean grey) {
+        writeMarker(0xD8); // SOI
+
+        // JFIF 1.01 with no density and no thumbnail
+
+        writeMarker(0xE0);
+        write16(16);
+        writeByte('J');
+        writeByte('F');
+        writeByte('I');
+        writeByte('F');
+        writeByte(0);
+        write16(0x0101);
+        writeByte(0);
+        write16(1);
+        write16(1);
+        writeByte(0);
+        writeByte(0);
+
+        writeMarker(0xDB); // DQT
+        write16(2 + (grey ? 65 : 130));
+        writeQuantizationTable(0, luminanceQuantization);
+
+        if (!grey) {
+            writeQuantizationTable(1, chrominanceQuantization);
+        }
+
+        writeMarker(0xC0); // SOF0
+        write16(8 + (3 * (grey ? 1 : 3)));
+        writeByte(8);
+        write16(height);
+        write16(width);
+        writeByte(grey ? 1 : 3);
+        writeByte(1);
+        writeByte(grey ? 0x11 : 0x22);
+        writeByte(0);
+
+        if (!grey) {
+            writeByte(2);
+            writeByte(0x11);
+            writeByte(1);
+            writeByte(3);
+            writeByte(0x11);
+            writeByte(1);
+        }
+
+        writeMarker(0xC4); // DHT
+        write16(2 + DC_LUMINANCE.getLength() + AC_LUMINANCE.getLength()
+                + (grey ? 0 : DC_CHROMINANCE.getLength() + AC_CHROMINANCE.getLength()));
+        writeHuffmanTable(0x00, DC_LUMINANCE_BITS, DC_LUMINANCE_VALUES);
+        writeHuffmanTable(0x10, AC_LUMINANCE_BITS, AC_LUMINANCE_VALUES);
+
+        if (!grey) {
+            writeHuffmanTable(0x01, DC_CHROMINANCE_BITS, DC_CHROMINANCE_VALUES);
+            writeHuffmanTable(0x11, AC_CHROMINANCE_BITS, AC_CHROMINANCE_VALUES);
+        }
+
+        writeMarker(0xDA); // SOS
+        write16(6 + (2 * (grey ? 1 : 3)));
+        writeByte(grey ? 1 : 3);
+        writeByte(1);
+        writeByte(0x00);
+
+        if (!grey) {
+            writeByte(2);
+            writeByte(0x11);
+            writeByte(3);
+            writeByte(0x11);
+        }
+
+        writeByte(0);
+        writeByte(63);
+        writeByte(0);
+    }
+
+    private void writeQuantizationTable(int id, int[] quantization) {
+        writeByte(id);
+
+        for (int k = 0; k < 64; k++) {
+            writeByte(quantization[ScaledJpegDecoder.ZIGZAG_TO_NATURAL[k]]);
+        }
+    }
+
+    private void writeHuffmanTable(int classAndId, int[] bits, int[] values) {
+        writeByte(classAndId);
+
+        for (int count : bits) {
+            writeByte(count);
+        }
+
+        for (int value : values) {
+            writeByte(value);
+        }
+    }
+
+    /**
+     * <p>Writes the low bits of the value into the entropy coded data.  The
+     * bits are collected and written out as whole bytes once there are at
+     * least 32 of them.</p>
+     */
+
+    private void writeBits(int value, int size) {
+        bitBuffer = (bitBuffer << size) | (value & ((1L << size) - 1));
+        bitCount += size;
+
+        if (bitCount >= 32) {
+            flushBits();
+        }
+    }
+
+    /**
+     * <p>Writes out the whole bytes that have been collected.  A byte of 0xFF
+     * in the entropy coded data is followed by a zero byte so that it is
+     * not taken to be a marker.</p>
+     */
+
+    private void flushBits() {
+        if (output.length - outputLength < 16) {
+            output = Arrays.copyOf(output, output.length * 2);
+        }
+
+        while (bitCount >= 8) {
+            bitCount -= 8;
+            byte b = (byte) (bitBuffer >>> bitCount);
+            output[outputLength++] = b;
+
+            if ((byte) 0xFF == b) {
+                output[outputLength++] = 0;
+            }
+        }
+    }
+
+    private void writeMarker(int marker) {
+        writeByte(0xFF);
+        writeByte(marker);
+    }
+
+    private void write16(int value) {
+        writeByte(value >> 8);
+        writeByte(value);
+    }
+
+    private void writeByte(int value) {
+        if (outputLength == output.length) {
+            output = Arrays.copyOf(output, output.length * 2);
+        }
+
+        output[outputLength++] = (byte) value;
+    }
+
+    /**
+     * <p>This is the code and the length of the code for each value that a
+     * Huffman table encodes.</p>
+     */
+
+    private static final class HuffmanTable {
+
+        private final int[] codes = new int[256];
+
+        private final int[] sizes = new int[256];
+
+        private final int length;
+
+        /**
+         * <p>The codes are assigned as in section C.2 of the JPEG standard.
+         * </p>
+         */
+
+        private HuffmanTable(int[] bits, int[] values) {
+            int code = 0;
+            int k = 0;
+
+            for (int size = 1; size <= 16; size++) {
+                for (int i = 0; i < bits[size - 1]; i++) {
+                    codes[values[k]] = code++;
+                    sizes[values[k]] = size;
+                    k++;
+                }
+
+                code <<= 1;
+            }
+
+            this.length = 1 + 16 + values.length;
+        }
+
+        /**
+         * <p>Returns the length of the table in the DHT segment.</p>
+         */
+
+        private int getLength() {
+            return length;
+        }
+
+    }
+
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2016-2023, Andrew Lindesay. All Rights Reserved.
+ * Distributed under the terms of the MIT License.
+ *
+ * Authors:
+ *		Andrew Lindesay, apl@lindesay.co.nz
+ */
+
+package nz.co.silvereye.photocat;
+
+import com.google.common.base.Preconditions;
+
+import javax.imageio.stream.ImageOutputStreamImpl;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * <p>This is an image output stream that writes straight into a byte array
+ * that grows as needed.  Unlike the streams that ImageIO provides, there
+ * is no cache in a temporary file or in memory between the writer and the
+ * data.  The stream can be cleared and used again in which case the array
+ * is kept so that it does not have to grow again.</p>
+ */
+
+public class ByteArrayImageOutputStream extends ImageOutputStreamImpl {
+
+    private byte[] buffer;
+
+    /**
+     * <p>This is the quantity of bytes that have been written which is not
+     * necessarily the current position as the stream may have been
+     * positioned back to overwrite earlier data.</p>
+     */
+
+    private int length = 0;
+
+    public ByteArrayImageOutputStream(int initialCapacity) {
+        Preconditions.checkArgument(initialCapacity >= 0, "the initial capacity must not be negative");
+        buffer = new byte[initialCapacity];
+    }
+
+    private void ensureCapacity(long capacity) throws IOException {
+        if (capacity > Integer.MAX_VALUE - 8) {
+            throw new IOException("the data is too large to be held in memory");
+        }
+
+        if (capacity > buffer.length) {
+            buffer = Arrays.copyOf(buffer, (int) Math.max(capacity, Math.min(Integer.MAX_VALUE - 8, buffer.length * 2L)));
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        checkClosed();
+        flushBits();
+        ensureCapacity(streamPos + 1);
+        buffer[(int) streamPos++] = (byte) b;
+        length = Math.max(length, (int) streamPos);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        checkClosed();
+        Preconditions.checkArgument(off >= 0 && len >= 0 && off + len <= b.length, "bad offset or length");
+        flushBits();
+        ensureCapacity(streamPos + len);
+        System.arraycopy(b, off, buffer, (int) streamPos, len);
+        streamPos += len;
+        length = Math.max(length, (int) streamPos);
+    }
+
+    @Override
+    public int read() throws IOException {
+        checkClosed();
+        bitOffset = 0;
+
+        if (streamPos >= length) {
+            return -1;
+        }
+
+        return buffer[(int) streamPos++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        checkClosed();
+        Preconditions.checkArgument(off >= 0 && len >= 0 && off + len <= b.length, "bad offset or length");
+        bitOffset = 0;
+
+        if (0 == len) {
+            return 0;
+        }
+
+        if (streamPos >= length) {
+            return -1;
+        }
+
+        int count = (int) Math.min(len, length - streamPos);
+        System.arraycopy(buffer, (int) streamPos, b, off, count);
+        streamPos += count;
+        return count;
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    /**
+     * <p>Returns a copy of the data that has been written.</p>
+     */
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buffer, length);
+    }
+
+    /**
+     * <p>Discards the data that has been written so that the stream can be
+     * used again.  Note that {@link #reset()} is not this; it returns to
+     * the last mark.</p>
+     */
+
+    public void clear() throws IOException {
+        checkClosed();
+        streamPos = 0;
+        bitOffset = 0;
+        flushedPos = 0;
+        length = 0;
+    }
+
+}
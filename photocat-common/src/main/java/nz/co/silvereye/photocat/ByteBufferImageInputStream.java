@@ -0,0 +1,178 @@
+/*
+ * Copyright 2016-2023, Andrew Lindesay. All Rights Reserved.
+ * Distributed under the terms of the MIT License.
+ *
+ * Authors:
+ *		Andrew Lindesay, apl@lindesay.co.nz
+ */
+
+package nz.co.silvereye.photocat;
+
+import com.google.common.base.Preconditions;
+
+import javax.imageio.stream.ImageInputStreamImpl;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * <p>This is an image input stream that reads from a {@link ByteBuffer}
+ * such as one mapped from a file.  The stream may be limited to a number
+ * of ranges of the buffer in which case it presents only the bytes in
+ * those ranges, one after the other, as if they were contiguous.  This
+ * allows parts of the data to be skipped over without the data being
+ * copied.  The buffer is not modified.</p>
+ */
+
+public class ByteBufferImageInputStream extends ImageInputStreamImpl {
+
+    private final ByteBuffer buffer;
+
+    /**
+     * <p>These are the offsets in the buffer of the start and the end of
+     * each range together with the offset in the stream of the start of
+     * each range.</p>
+     */
+
+    private final int[] rangeStarts;
+
+    private final int[] rangeEnds;
+
+    private final long[] rangeStreamOffsets;
+
+    private final long length;
+
+    /**
+     * <p>This is the range in which the last read finished which is likely
+     * to be where the next read will start.</p>
+     */
+
+    private int rangeIndex = 0;
+
+    public ByteBufferImageInputStream(ByteBuffer buffer) {
+        this(buffer, new int[] { 0, buffer.limit() });
+    }
+
+    /**
+     * <p>The ranges are supplied as pairs of the start offset (inclusive)
+     * and the end offset (exclusive) in the buffer and must be in order.</p>
+     */
+
+    public ByteBufferImageInputStream(ByteBuffer buffer, int[] ranges) {
+        Preconditions.checkArgument(null!=buffer, "the buffer must be provided");
+        Preconditions.checkArgument(null!=ranges && 0 == ranges.length % 2, "the ranges must be supplied in pairs");
+
+        int rangeCount = ranges.length / 2;
+        long streamOffset = 0;
+
+        this.buffer = buffer;
+        this.rangeStarts = new int[rangeCount];
+        this.rangeEnds = new int[rangeCount];
+        this.rangeStreamOffsets = new long[rangeCount];
+
+        for (int i = 0; i < rangeCount; i++) {
+            Preconditions.checkArgument(
+                    ranges[i * 2] >= (0 == i ? 0 : ranges[(i * 2) - 1])
+                            && ranges[i * 2] <= ranges[(i * 2) + 1]
+                            && ranges[(i * 2) + 1] <= buffer.limit(),
+                    "bad range");
+            rangeStarts[i] = ranges[i * 2];
+            rangeEnds[i] = ranges[(i * 2) + 1];
+            rangeStreamOffsets[i] = streamOffset;
+            streamOffset += rangeEnds[i] - rangeStarts[i];
+        }
+
+        this.length = streamOffset;
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    /**
+     * <p>Returns the index of the range that has the current stream position
+     * or -1 if the position is at or beyond the end of the stream.</p>
+     */
+
+    private int findRangeIndex() {
+        if (streamPos >= length) {
+            return -1;
+        }
+
+        if (isInRange(rangeIndex)) {
+            return rangeIndex;
+        }
+
+        if (rangeIndex + 1 < rangeStarts.length && isInRange(rangeIndex + 1)) {
+            return ++rangeIndex;
+        }
+
+        int index = Arrays.binarySearch(rangeStreamOffsets, streamPos);
+
+        // where there are empty ranges, more than one range may have the same
+        // stream offset so the last of these is the one with the data.
+
+        if (index < 0) {
+            index = -index - 2;
+        }
+
+        while (!isInRange(index)) {
+            index++;
+        }
+
+        rangeIndex = index;
+        return index;
+    }
+
+    private boolean isInRange(int index) {
+        return streamPos >= rangeStreamOffsets[index]
+                && streamPos < rangeStreamOffsets[index] + (rangeEnds[index] - rangeStarts[index]);
+    }
+
+    @Override
+    public int read() throws IOException {
+        checkClosed();
+        bitOffset = 0;
+
+        int index = findRangeIndex();
+
+        if (-1 == index) {
+            return -1;
+        }
+
+        int result = buffer.get(rangeStarts[index] + (int) (streamPos - rangeStreamOffsets[index])) & 0xFF;
+        streamPos++;
+        return result;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        checkClosed();
+        Preconditions.checkArgument(off >= 0 && len >= 0 && off + len <= b.length, "bad offset or length");
+        bitOffset = 0;
+
+        if (0 == len) {
+            return 0;
+        }
+
+        int total = 0;
+
+        while (total < len) {
+            int index = findRangeIndex();
+
+            if (-1 == index) {
+                break;
+            }
+
+            int bufferOffset = rangeStarts[index] + (int) (streamPos - rangeStreamOffsets[index]);
+            int count = Math.min(len - total, rangeEnds[index] - bufferOffset);
+            buffer.get(bufferOffset, b, off + total, count);
+            streamPos += count;
+            total += count;
+        }
+
+        return 0 == total ? -1 : total;
+    }
+
+}
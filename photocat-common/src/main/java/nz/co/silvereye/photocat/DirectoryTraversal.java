@@ -0,0 +1,298 @@
+/*
+ * Copyright 2016-2023, Andrew Lindesay. All Rights Reserved.
+ * Distributed under the terms of the MIT License.
+ *
+ * Authors:
+ *		Andrew Lindesay, apl@lindesay.co.nz
+ */
+
+package nz.co.silvereye.photocat;
+
+import com.google.common.base.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * <p>This class walks the source directory of a job and reports the files
+ * that it finds.  Each directory is read lazily with a
+ * {@link DirectoryStream} so that very large directories are not listed
+ * into memory in one go and each sub-directory is handed off to a
+ * fork-join pool so that, on high-latency storage, many directories are
+ * being read at the same time.  The attributes of each entry are read
+ * once and are then passed to the consumer so that they do not need to
+ * be read again.</p>
+ *
+ * <p>Hidden entries, entries matching an exclude glob and directories
+ * deeper than the maximum depth are pruned before they are descended
+ * into.  A glob that contains a '/' is matched against the path relative
+ * to the source directory, in which a '*' does not cross a '/'.  A glob
+ * without a '/' is matched against the name of the file or directory
+ * alone so that a glob such as {@code *.jpg} applies at any depth.</p>
+ */
+
+public class DirectoryTraversal {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DirectoryTraversal.class);
+
+    private final Path rootDirectory;
+
+    private final List<PathMatcher> includeMatchers;
+
+    private final List<PathMatcher> excludeMatchers;
+
+    private final int maximumDepth;
+
+    private final int parallelism;
+
+    public DirectoryTraversal(AbstractJob job) {
+        Preconditions.checkArgument(null!=job, "the job must be provided");
+        Preconditions.checkArgument(null!=job.getSourceDirectory(), "the job must have a source directory");
+
+        this.rootDirectory = job.getSourceDirectory().toPath();
+        this.includeMatchers = createPathMatchers(job.getIncludeGlobs());
+        this.excludeMatchers = createPathMatchers(job.getExcludeGlobs());
+        this.maximumDepth = job.getMaximumDepth();
+        this.parallelism = job.getTraversalThreadCount();
+    }
+
+    private List<PathMatcher> createPathMatchers(List<String> globs) {
+        List<PathMatcher> result = new ArrayList<>();
+
+        for (String glob : globs) {
+            PathMatcher matcher = rootDirectory.getFileSystem().getPathMatcher("glob:" + glob);
+
+            if (glob.contains("/")) {
+                result.add(matcher);
+            } else {
+                result.add(p -> null != p.getFileName() && matcher.matches(p.getFileName()));
+            }
+        }
+
+        return result;
+    }
+
+    private static boolean matchesAny(List<PathMatcher> matchers, Path relativePath) {
+        for (PathMatcher matcher : matchers) {
+            if (matcher.matches(relativePath)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private boolean isIncluded(Path relativePath) {
+        return includeMatchers.isEmpty() || matchesAny(includeMatchers, relativePath);
+    }
+
+    private boolean isExcluded(Path relativePath) {
+        return matchesAny(excludeMatchers, relativePath);
+    }
+
+    /**
+     * <p>Symbolic links are followed so the keys of the directories that have
+     * been visited are recorded in order to avoid cycles.</p>
+     */
+
+    private static boolean markVisited(Set<Object> visitedDirectoryKeys, BasicFileAttributes attributes) {
+        Object key = attributes.fileKey();
+        return null == key || visitedDirectoryKeys.add(key);
+    }
+
+    /**
+     * <p>Returns true if the file, which is somewhere within the source
+     * directory, would be supplied to the consumer by a traversal.  This is
+     * judged from the path alone.</p>
+     */
+
+    public boolean accepts(Path file) {
+        Preconditions.checkArgument(null!=file, "the file must be provided");
+
+        Path relativePath = rootDirectory.relativize(file);
+
+        return !relativePath.toString().isEmpty()
+                && relativePath.getNameCount() - 1 <= maximumDepth
+                && !isPruned(relativePath)
+                && isIncluded(relativePath);
+    }
+
+    /**
+     * <p>Returns true if the directory is the source directory or is one that
+     * a traversal would read the files from.  This is judged from the path
+     * alone.</p>
+     */
+
+    public boolean acceptsDirectory(Path directory) {
+        Preconditions.checkArgument(null!=directory, "the directory must be provided");
+
+        Path relativePath = rootDirectory.relativize(directory);
+
+        return relativePath.toString().isEmpty()
+                || (relativePath.getNameCount() <= maximumDepth && !isPruned(relativePath));
+    }
+
+    /**
+     * <p>Returns true if the relative path or any of its parents are hidden
+     * or excluded.  A path outside of the source directory is also treated
+     * as pruned.</p>
+     */
+
+    private boolean isPruned(Path relativePath) {
+        if (relativePath.startsWith("..")) {
+            return true;
+        }
+
+        for (int i = 1; i <= relativePath.getNameCount(); i++) {
+            Path relativeSubPath = relativePath.subpath(0, i);
+
+            if ('.' == relativeSubPath.getFileName().toString().charAt(0) || isExcluded(relativeSubPath)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * <p>Walks the source directory and supplies each regular file found to
+     * the consumer.  The consumer is invoked concurrently from a number of
+     * threads and so must be thread-safe.  This method will return once the
+     * whole tree has been walked.</p>
+     */
+
+    public void traverse(BiConsumer<Path, BasicFileAttributes> fileConsumer) {
+        traverse(rootDirectory, d -> {}, fileConsumer);
+    }
+
+    /**
+     * <p>Walks the directory supplied, which must be the source directory
+     * or a directory within it.  The directory consumer is supplied with
+     * the starting directory and each directory that is descended into.
+     * As with the file consumer, it is invoked concurrently.</p>
+     */
+
+    public void traverse(
+            Path startDirectory,
+            Consumer<Path> directoryConsumer,
+            BiConsumer<Path, BasicFileAttributes> fileConsumer) {
+        Preconditions.checkArgument(null!=startDirectory, "the start directory must be provided");
+        Preconditions.checkArgument(null!=directoryConsumer, "the directory consumer must be provided");
+        Preconditions.checkArgument(null!=fileConsumer, "the file consumer must be provided");
+
+        Set<Object> visitedDirectoryKeys = ConcurrentHashMap.newKeySet();
+
+        try {
+            markVisited(visitedDirectoryKeys, Files.readAttributes(startDirectory, BasicFileAttributes.class));
+        } catch (IOException ioe) {
+            LOGGER.warn("unable to read the attributes of the directory; {}", startDirectory, ioe);
+            return;
+        }
+
+        Path relativePath = rootDirectory.relativize(startDirectory);
+        int depth = relativePath.toString().isEmpty() ? 0 : relativePath.getNameCount();
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+
+        try {
+            pool.invoke(new DirectoryAction(
+                    startDirectory,
+                    depth,
+                    visitedDirectoryKeys,
+                    directoryConsumer,
+                    fileConsumer));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private class DirectoryAction extends RecursiveAction {
+
+        private final Path directory;
+
+        private final int depth;
+
+        private final Set<Object> visitedDirectoryKeys;
+
+        private final Consumer<Path> directoryConsumer;
+
+        private final BiConsumer<Path, BasicFileAttributes> fileConsumer;
+
+        DirectoryAction(
+                Path directory,
+                int depth,
+                Set<Object> visitedDirectoryKeys,
+                Consumer<Path> directoryConsumer,
+                BiConsumer<Path, BasicFileAttributes> fileConsumer) {
+            this.directory = directory;
+            this.depth = depth;
+            this.visitedDirectoryKeys = visitedDirectoryKeys;
+            this.directoryConsumer = directoryConsumer;
+            this.fileConsumer = fileConsumer;
+        }
+
+        @Override
+        protected void compute() {
+            List<DirectoryAction> subDirectoryActions = new ArrayList<>();
+
+            directoryConsumer.accept(directory);
+
+            try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(directory)) {
+                for (Path entry : directoryStream) {
+
+                    // linux and mac put '.' in front of hidden files and directories
+
+                    if ('.' == entry.getFileName().toString().charAt(0)) {
+                        continue;
+                    }
+
+                    Path relativePath = rootDirectory.relativize(entry);
+
+                    if (isExcluded(relativePath)) {
+                        continue;
+                    }
+
+                    BasicFileAttributes attributes;
+
+                    try {
+                        attributes = Files.readAttributes(entry, BasicFileAttributes.class);
+                    } catch (IOException ioe) {
+                        LOGGER.warn("unable to read the attributes of; {}", entry, ioe);
+                        continue;
+                    }
+
+                    if (attributes.isDirectory()) {
+                        if (depth < maximumDepth && markVisited(visitedDirectoryKeys, attributes)) {
+                            DirectoryAction subDirectoryAction = new DirectoryAction(
+                                    entry, depth + 1, visitedDirectoryKeys, directoryConsumer, fileConsumer);
+                            subDirectoryAction.fork();
+                            subDirectoryActions.add(subDirectoryAction);
+                        }
+                    } else {
+                        if (attributes.isRegularFile() && isIncluded(relativePath)) {
+                            fileConsumer.accept(entry, attributes);
+                        }
+                    }
+                }
+            } catch (IOException | DirectoryIteratorException e) {
+                LOGGER.warn("unable to read the directory; {}", directory, e);
+            }
+
+            for (DirectoryAction subDirectoryAction : subDirectoryActions) {
+                subDirectoryAction.join();
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,365 @@
+/*
+ * Copyright 2016-2023, Andrew Lindesay. All Rights Reserved.
+ * Distributed under the terms of the MIT License.
+ *
+ * Authors:
+ *		Andrew Lindesay, apl@lindesay.co.nz
+ */
+
+package nz.co.silvereye.photocat;
+
+import com.google.common.base.Preconditions;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.format.ResolverStyle;
+
+/**
+ * <p>This class is able to read the small amount of EXIF data that the
+ * application uses from a JPEG file without parsing the whole of the
+ * file's meta-data.  It walks the segment headers at the start of the
+ * file, reads only the APP1 Exif segment and then decodes only the IFD
+ * entries for the image description and the date-time-original.</p>
+ *
+ * <p>Where the data is in a form that this class does not handle, an
+ * {@link IOException} is thrown so that the caller can fall back to a
+ * full meta-data library.</p>
+ */
+
+public class ExifHelper {
+
+    private static final int TAG_IMAGE_DESCRIPTION = 0x010E;
+    private static final int TAG_ORIENTATION = 0x0112;
+    private static final int TAG_JPEG_INTERCHANGE_FORMAT = 0x0201;
+    private static final int TAG_JPEG_INTERCHANGE_FORMAT_LENGTH = 0x0202;
+    private static final int TAG_EXIF_SUB_IFD_OFFSET = 0x8769;
+    private static final int TAG_DATETIME_ORIGINAL = 0x9003;
+
+    private static final int FORMAT_ASCII = 2;
+    private static final int FORMAT_SHORT = 3;
+    private static final int FORMAT_LONG = 4;
+    private static final int FORMAT_IFD = 13;
+
+    /**
+     * <p>Segments that are not the Exif segment are skipped over, but
+     * only a limited number of them are tolerated before giving up.</p>
+     */
+
+    private static final int MAXIMUM_SEGMENTS_BEFORE_EXIF = 32;
+
+    private static final byte[] EXIF_PREAMBLE = "Exif\0\0".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * <p>This is the orientation that applies where there is no orientation
+     * tag.</p>
+     */
+
+    private static final int ORIENTATION_DEFAULT = 1;
+
+    /**
+     * <p>The EXIF date-time has no time zone; it is interpreted as GMT in
+     * order to match how the metadata-extractor library interprets it.</p>
+     */
+
+    private static final DateTimeFormatter DATETIME_FORMATTER = DateTimeFormatter
+            .ofPattern("uuuu:MM:dd HH:mm:ss")
+            .withResolverStyle(ResolverStyle.STRICT);
+
+    private static int readUnsignedShort(ByteBuffer buffer, int offset) throws IOException {
+        checkRange(buffer, offset, 2);
+        return buffer.getShort(offset) & 0xFFFF;
+    }
+
+    private static long readUnsignedInt(ByteBuffer buffer, int offset) throws IOException {
+        checkRange(buffer, offset, 4);
+        return buffer.getInt(offset) & 0xFFFFFFFFL;
+    }
+
+    private static void checkRange(ByteBuffer buffer, long offset, long length) throws IOException {
+        if (offset < 0 || length < 0 || offset + length > buffer.limit()) {
+            throw new IOException("exif data refers outside of the segment");
+        }
+    }
+
+    /**
+     * <p>Reads the meta-data from the JPEG file open on the channel.  Only
+     * the segment headers and the Exif segment are read from the file.</p>
+     */
+
+    public static SourceFileMetadata readMetadata(FileChannel channel) throws IOException {
+        Preconditions.checkArgument(null!=channel, "the channel must be provided");
+        return readMetadata(PositionalReader.of(channel));
+    }
+
+    /**
+     * <p>Reads the meta-data from JPEG data that is already in memory; for
+     * example a file that has been mapped into memory.</p>
+     */
+
+    public static SourceFileMetadata readMetadata(ByteBuffer jpegData) throws IOException {
+        Preconditions.checkArgument(null!=jpegData, "the jpeg data must be provided");
+        return readMetadata(PositionalReader.of(jpegData));
+    }
+
+    /**
+     * <p>Returns the JPEG preview image that is embedded in the Exif data as
+     * the thumbnail of IFD1 or NULL if there is no such preview.  NULL is
+     * also returned if the preview has a different orientation to the main
+     * image.</p>
+     */
+
+    public static ByteBuffer readEmbeddedPreview(ByteBuffer jpegData) throws IOException {
+        Preconditions.checkArgument(null!=jpegData, "the jpeg data must be provided");
+
+        ByteBuffer tiff = readExifSegment(PositionalReader.of(jpegData));
+
+        if (null == tiff) {
+            return null;
+        }
+
+        int ifd0Offset = readTiffHeader(tiff);
+        int ifd1Offset = (int) readUnsignedInt(tiff, ifd0Offset + 2 + (readUnsignedShort(tiff, ifd0Offset) * 12));
+
+        if (0 == ifd1Offset) {
+            return null;
+        }
+
+        int offsetEntryOffset = findIfdEntry(tiff, ifd1Offset, TAG_JPEG_INTERCHANGE_FORMAT);
+        int lengthEntryOffset = findIfdEntry(tiff, ifd1Offset, TAG_JPEG_INTERCHANGE_FORMAT_LENGTH);
+
+        if (-1 == offsetEntryOffset || -1 == lengthEntryOffset) {
+            return null;
+        }
+
+        if (readOrientation(tiff, ifd0Offset) != readOrientation(tiff, ifd1Offset)) {
+            return null;
+        }
+
+        long previewOffset = readUnsignedNumber(tiff, offsetEntryOffset);
+        long previewLength = readUnsignedNumber(tiff, lengthEntryOffset);
+
+        if (previewLength < 4) {
+            return null;
+        }
+
+        checkRange(tiff, previewOffset, previewLength);
+
+        ByteBuffer result = tiff.slice((int) previewOffset, (int) previewLength);
+
+        if (0xFFD8 != (result.getShort(0) & 0xFFFF)) {
+            throw new IOException("the embedded preview is not jpeg data");
+        }
+
+        return result;
+    }
+
+    private static int readOrientation(ByteBuffer tiff, int ifdOffset) throws IOException {
+        int entryOffset = findIfdEntry(tiff, ifdOffset, TAG_ORIENTATION);
+        return -1 == entryOffset ? ORIENTATION_DEFAULT : (int) readUnsignedNumber(tiff, entryOffset);
+    }
+
+    /**
+     * <p>Reads a single short or long value from the IFD entry.</p>
+     */
+
+    private static long readUnsignedNumber(ByteBuffer tiff, int entryOffset) throws IOException {
+        return switch (readUnsignedShort(tiff, entryOffset + 2)) {
+            case FORMAT_SHORT -> readUnsignedShort(tiff, entryOffset + 8);
+            case FORMAT_LONG -> readUnsignedInt(tiff, entryOffset + 8);
+            default -> throw new IOException("unexpected format for a numeric exif value");
+        };
+    }
+
+    private static SourceFileMetadata readMetadata(PositionalReader reader) throws IOException {
+        ByteBuffer tiff = readExifSegment(reader);
+
+        if (null == tiff) {
+            return SourceFileMetadata.EMPTY;
+        }
+
+        return parseTiff(tiff);
+    }
+
+    /**
+     * <p>Returns the TIFF structure of the Exif segment or NULL if the
+     * JPEG data does not have an Exif segment.</p>
+     */
+
+    private static ByteBuffer readExifSegment(PositionalReader reader) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(4);
+        long position = 0;
+
+        if (2 != reader.read(header.limit(2), position) || 0xFFD8 != (header.getShort(0) & 0xFFFF)) {
+            throw new IOException("missing SOI marker");
+        }
+
+        position += 2;
+
+        for (int i = 0; i < MAXIMUM_SEGMENTS_BEFORE_EXIF; i++) {
+            header.clear();
+
+            if (4 != reader.read(header, position)) {
+                throw new IOException("unexpected end of file when reading a segment header");
+            }
+
+            int segmentMarker = header.getShort(0) & 0xFFFF;
+            int length = header.getShort(2) & 0xFFFF;
+
+            if ((segmentMarker & 0xFF00) != 0xFF00) {
+                throw new IOException("bad segment marker; all segment markers should start with 0xFF");
+            }
+
+            // once the image data has started, there is no point looking any further.
+
+            if (0xFFDA == segmentMarker || 0xFFD9 == segmentMarker || (segmentMarker >= 0xFFC0 && segmentMarker <= 0xFFCF
+                    && segmentMarker != 0xFFC4 && segmentMarker != 0xFFC8 && segmentMarker != 0xFFCC)) {
+                return null;
+            }
+
+            if (length < 2) {
+                throw new IOException("bad segment length");
+            }
+
+            if (0xFFE1 == segmentMarker && length - 2 > EXIF_PREAMBLE.length) {
+                ByteBuffer segment = ByteBuffer.allocate(length - 2);
+
+                if (segment.limit() != reader.read(segment, position + 4)) {
+                    throw new IOException("unexpected end of file when reading the exif segment");
+                }
+
+                if (hasExifPreamble(segment)) {
+                    return segment.position(EXIF_PREAMBLE.length).slice();
+                }
+            }
+
+            position += 2 + length;
+        }
+
+        throw new IOException("too many segments before the exif segment");
+    }
+
+    private static boolean hasExifPreamble(ByteBuffer segment) {
+        for (int i = 0; i < EXIF_PREAMBLE.length; i++) {
+            if (segment.get(i) != EXIF_PREAMBLE[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * <p>Sets the byte order of the TIFF structure from its header and
+     * returns the offset of IFD0.</p>
+     */
+
+    private static int readTiffHeader(ByteBuffer tiff) throws IOException {
+        if (tiff.limit() < 8) {
+            throw new IOException("exif data is too short");
+        }
+
+        switch (tiff.getShort(0)) {
+            case 0x4949 -> tiff.order(ByteOrder.LITTLE_ENDIAN); // II
+            case 0x4D4D -> tiff.order(ByteOrder.BIG_ENDIAN); // MM
+            default -> throw new IOException("unknown exif byte order");
+        }
+
+        if (42 != readUnsignedShort(tiff, 2)) {
+            throw new IOException("bad tiff magic number in the exif data");
+        }
+
+        return (int) readUnsignedInt(tiff, 4);
+    }
+
+    /**
+     * <p>Decodes the image description from IFD0 and the date-time-original
+     * from the Exif sub-IFD from the TIFF structure supplied.</p>
+     */
+
+    static SourceFileMetadata parseTiff(ByteBuffer tiff) throws IOException {
+        int ifd0Offset = readTiffHeader(tiff);
+        String description = null;
+        java.util.Date timestamp = null;
+
+        int ifd0EntryOffset = findIfdEntry(tiff, ifd0Offset, TAG_IMAGE_DESCRIPTION);
+
+        if (-1 != ifd0EntryOffset) {
+            description = readAscii(tiff, ifd0EntryOffset);
+        }
+
+        int subIfdPointerEntryOffset = findIfdEntry(tiff, ifd0Offset, TAG_EXIF_SUB_IFD_OFFSET);
+
+        if (-1 != subIfdPointerEntryOffset) {
+            int format = readUnsignedShort(tiff, subIfdPointerEntryOffset + 2);
+
+            if (FORMAT_LONG != format && FORMAT_IFD != format) {
+                throw new IOException("unexpected format for the exif sub-ifd pointer");
+            }
+
+            int subIfdOffset = (int) readUnsignedInt(tiff, subIfdPointerEntryOffset + 8);
+            int dateTimeOriginalEntryOffset = findIfdEntry(tiff, subIfdOffset, TAG_DATETIME_ORIGINAL);
+
+            if (-1 != dateTimeOriginalEntryOffset) {
+                timestamp = parseDateTime(readAscii(tiff, dateTimeOriginalEntryOffset));
+            }
+        }
+
+        return new SourceFileMetadata(timestamp, description);
+    }
+
+    /**
+     * <p>Returns the offset of the 12 byte entry with the tag supplied in
+     * the IFD at the offset supplied or -1 if there is no such entry.</p>
+     */
+
+    private static int findIfdEntry(ByteBuffer tiff, int ifdOffset, int tag) throws IOException {
+        int entryCount = readUnsignedShort(tiff, ifdOffset);
+        checkRange(tiff, ifdOffset + 2, entryCount * 12L);
+
+        for (int i = 0; i < entryCount; i++) {
+            int entryOffset = ifdOffset + 2 + (i * 12);
+
+            if (tag == readUnsignedShort(tiff, entryOffset)) {
+                return entryOffset;
+            }
+        }
+
+        return -1;
+    }
+
+    private static String readAscii(ByteBuffer tiff, int entryOffset) throws IOException {
+        if (FORMAT_ASCII != readUnsignedShort(tiff, entryOffset + 2)) {
+            throw new IOException("unexpected format for an ascii exif value");
+        }
+
+        long count = readUnsignedInt(tiff, entryOffset + 4);
+        long valueOffset = count <= 4 ? entryOffset + 8 : readUnsignedInt(tiff, entryOffset + 8);
+        checkRange(tiff, valueOffset, count);
+
+        int length = 0;
+
+        while (length < count && 0 != tiff.get((int) valueOffset + length)) {
+            length++;
+        }
+
+        byte[] bytes = new byte[length];
+        tiff.get((int) valueOffset, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static java.util.Date parseDateTime(String value) throws IOException {
+        try {
+            return java.util.Date.from(LocalDateTime.parse(value, DATETIME_FORMATTER).toInstant(ZoneOffset.UTC));
+        } catch (DateTimeParseException dtpe) {
+            throw new IOException("unable to parse the exif date-time; " + value, dtpe);
+        }
+    }
+
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2016-2023, Andrew Lindesay. All Rights Reserved.
+ * Distributed under the terms of the MIT License.
+ *
+ * Authors:
+ *		Andrew Lindesay, apl@lindesay.co.nz
+ */
+
+package nz.co.silvereye.photocat;
+
+import com.google.common.base.Preconditions;
+
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>This class keeps the byte arrays that back decoded images so that
+ * they can be used again for later images.  Decoded images are large and
+ * allocating a new array for each one causes a lot of garbage collection;
+ * in G1 each is a humongous allocation.  An image is decoded into an array
+ * from the pool and the array is returned to the pool once the image has
+ * been scaled.  A decoded image is handed from one thread to another
+ * while it is prepared so the pool is shared by the threads rather than
+ * there being a pool for each thread.</p>
+ *
+ * <p>An array from the pool may be larger than is needed and an array
+ * that is too small for an image is replaced by a larger one so that the
+ * arrays grow to the size of the largest images seen.  The pool only keeps
+ * arrays up to a total size; arrays beyond that are left to the garbage
+ * collector.</p>
+ */
+
+public class ImageBufferPool {
+
+    private final long maximumBytes;
+
+    private final List<byte[]> buffers = new ArrayList<>();
+
+    private long bytes = 0;
+
+    public ImageBufferPool(long maximumBytes) {
+        Preconditions.checkArgument(maximumBytes >= 0, "the maximum bytes must not be negative");
+        this.maximumBytes = maximumBytes;
+    }
+
+    /**
+     * <p>Returns an array of at least the length supplied.  The content of
+     * the array is undefined.  The smallest array in the pool that is large
+     * enough is used and otherwise a new array is allocated in which case
+     * the largest array in the pool is given up so that the pool does not
+     * keep growing.</p>
+     */
+
+    public byte[] take(int minimumLength) {
+        Preconditions.checkArgument(minimumLength >= 0, "the minimum length must not be negative");
+
+        synchronized (buffers) {
+            int bestIndex = -1;
+            int largestIndex = -1;
+
+            for (int i = 0; i < buffers.size(); i++) {
+                int length = buffers.get(i).length;
+
+                if (length >= minimumLength && (-1 == bestIndex || length < buffers.get(bestIndex).length)) {
+                    bestIndex = i;
+                }
+
+                if (-1 == largestIndex || length > buffers.get(largestIndex).length) {
+                    largestIndex = i;
+                }
+            }
+
+            int index = -1 != bestIndex ? bestIndex : largestIndex;
+
+            if (-1 != index) {
+                byte[] buffer = buffers.remove(index);
+                bytes -= buffer.length;
+
+                if (-1 != bestIndex) {
+                    return buffer;
+                }
+            }
+        }
+
+        return new byte[minimumLength];
+    }
+
+    /**
+     * <p>Hands the array back to the pool once it is no longer used.</p>
+     */
+
+    public void release(byte[] buffer) {
+        Preconditions.checkArgument(null!=buffer, "the buffer must be provided");
+
+        synchronized (buffers) {
+            if (bytes + buffer.length <= maximumBytes) {
+                buffers.add(buffer);
+                bytes += buffer.length;
+            }
+        }
+    }
+
+    /**
+     * <p>Returns true if images of this type can be backed by an array from
+     * the pool.  These are the types that ImageIO decodes JPEG images into.
+     * </p>
+     */
+
+    public static boolean isSupported(int imageType) {
+        return BufferedImage.TYPE_3BYTE_BGR == imageType || BufferedImage.TYPE_BYTE_GRAY == imageType;
+    }
+
+    /**
+     * <p>Creates an image of the type, which must be supported, that is
+     * backed by an array from the pool.</p>
+     */
+
+    public BufferedImage createImage(int width, int height, int imageType) {
+        Preconditions.checkArgument(width > 0 && height > 0, "the width and height must be positive");
+        Preconditions.checkArgument(isSupported(imageType), "the image type is not supported");
+
+        boolean grey = BufferedImage.TYPE_BYTE_GRAY == imageType;
+        int channels = grey ? 1 : 3;
+        int length = Math.multiplyExact(Math.multiplyExact(width, height), channels);
+        DataBufferByte dataBuffer = new DataBufferByte(take(length), length);
+        WritableRaster raster = Raster.createInterleavedRaster(
+                dataBuffer, width, height, width * channels, channels,
+                grey ? new int[] { 0 } : new int[] { 2, 1, 0 }, null);
+        ColorModel colorModel = new ComponentColorModel(
+                ColorSpace.getInstance(grey ? ColorSpace.CS_GRAY : ColorSpace.CS_sRGB),
+                false, false, Transparency.OPAQUE, DataBuffer.TYPE_BYTE);
+
+        return new BufferedImage(colorModel, raster, false, null);
+    }
+
+    /**
+     * <p>Hands the array backing the image back to the pool.  The image
+     * must not be used afterwards.  Images that are not backed by a single
+     * byte array are ignored.</p>
+     */
+
+    public void release(BufferedImage bi) {
+        Preconditions.checkArgument(null!=bi, "the image must be provided");
+
+        if (isSupported(bi.getType())
+                && null == bi.getRaster().getParent()
+                && bi.getRaster().getDataBuffer() instanceof DataBufferByte dataBuffer
+                && 1 == dataBuffer.getNumBanks()) {
+            release(dataBuffer.getData());
+        }
+    }
+
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2016-2023, Andrew Lindesay. All Rights Reserved.
+ * Distributed under the terms of the MIT License.
+ *
+ * Authors:
+ *		Andrew Lindesay, apl@lindesay.co.nz
+ */
+
+package nz.co.silvereye.photocat;
+
+import com.google.common.base.Preconditions;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Iterator;
+
+/**
+ * <p>This class keeps an ImageIO JPEG reader and writer for each thread so
+ * that they are not looked up and created again for each file.  Between
+ * uses, the reader and writer are reset.  The writer writes into a stream
+ * in memory that is also kept for the thread.  A
+ * {@link BaselineJpegEncoder} is kept for the thread in the same way.</p>
+ */
+
+final class ImageCodecs {
+
+    private static final String FORMAT_JPEG = "jpeg";
+
+    /**
+     * <p>This is the same quality that ImageIO uses by default.</p>
+     */
+
+    private static final float JPEG_QUALITY = 0.75f;
+
+    private static final ThreadLocal<ImageCodecs> CODECS = ThreadLocal.withInitial(ImageCodecs::new);
+
+    private ImageReader jpegReader = null;
+
+    private ImageWriter jpegWriter = null;
+
+    private ImageWriteParam jpegWriteParam = null;
+
+    private ByteArrayImageOutputStream outputStream = null;
+
+    private BaselineJpegEncoder baselineJpegEncoder = null;
+
+    private ImageCodecs() {
+    }
+
+    static ImageCodecs forCurrentThread() {
+        return CODECS.get();
+    }
+
+    /**
+     * <p>Returns a reader for the data in the stream.  This is the thread's
+     * JPEG reader if it is able to decode the data and otherwise is a new
+     * reader for the data.  The reader must be handed back with
+     * {@link #releaseReader(ImageReader)} once it has been used.</p>
+     */
+
+    ImageReader acquireReader(ImageInputStream iis) throws IOException {
+        Preconditions.checkArgument(null!=iis, "the image input stream must be provided");
+
+        if (null == jpegReader) {
+            jpegReader = ImageIO.getImageReadersByFormatName(FORMAT_JPEG).next();
+        }
+
+        if (jpegReader.getOriginatingProvider().canDecodeInput(iis)) {
+            return jpegReader;
+        }
+
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+
+        if (!readers.hasNext()) {
+            throw new IOException("no image reader was able to decode the image");
+        }
+
+        return readers.next();
+    }
+
+    void releaseReader(ImageReader reader) {
+        Preconditions.checkArgument(null!=reader, "the reader must be provided");
+
+        if (reader == jpegReader) {
+            reader.reset();
+        } else {
+            reader.dispose();
+        }
+    }
+
+    /**
+     * <p>Encodes the image as JPEG data with the ImageIO writer.</p>
+     */
+
+    byte[] writeJpeg(BufferedImage bi) throws IOException {
+        Preconditions.checkArgument(null!=bi, "the image must be provided");
+
+        if (null == jpegWriter) {
+            jpegWriter = ImageIO.getImageWritersByFormatName(FORMAT_JPEG).next();
+            jpegWriteParam = jpegWriter.getDefaultWriteParam();
+            jpegWriteParam.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            jpegWriteParam.setCompressionQuality(JPEG_QUALITY);
+            outputStream = new ByteArrayImageOutputStream(32 * 1024);
+        }
+
+        outputStream.clear();
+
+        try {
+            jpegWriter.setOutput(outputStream);
+            jpegWriter.write(null, new IIOImage(bi, null, null), jpegWriteParam);
+        } finally {
+            jpegWriter.reset();
+        }
+
+        return outputStream.toByteArray();
+    }
+
+    /**
+     * <p>Encodes the image as JPEG data with the
+     * {@link BaselineJpegEncoder}.</p>
+     */
+
+    byte[] writeBaselineJpeg(BufferedImage bi) {
+        Preconditions.checkArgument(null!=bi, "the image must be provided");
+
+        if (null == baselineJpegEncoder) {
+            baselineJpegEncoder = new BaselineJpegEncoder(Math.round(JPEG_QUALITY * 100));
+        }
+
+        return baselineJpegEncoder.encode(bi);
+    }
+
+}
@@ -14,13 +14,26 @@ import com.drew.metadata.Metadata;
 import com.drew.metadata.exif.ExifIFD0Directory;
 import com.drew.metadata.exif.ExifSubIFDDirectory;
 import com.google.common.base.Preconditions;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.Futures;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Queue;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -57,7 +70,7 @@ public class JobHelper {
      * It will not return NULL.</p>
      */
 
-    static DataType deriveDataType(File file) {
+    public static DataType deriveDataType(File file) {
         Preconditions.checkArgument(null!=file, "the file must be provided");
 
         String name = file.getName();
@@ -85,83 +98,284 @@ public class JobHelper {
      */
 
     public static List<JobSourceFile> assembleJobSourceFiles(AbstractJob job) {
-        List<JobSourceFile> result = new ArrayList<>();
-        assembleJobSourceFiles(result, job, job.getSourceDirectory());
+        Queue<JobSourceFile> discovered = new ConcurrentLinkedQueue<>();
+        assembleJobSourceFiles(job, discovered::add);
+        List<JobSourceFile> result = new ArrayList<>(discovered);
         Collections.sort(result);
         return result;
     }
 
-    protected static void assembleJobSourceFiles(
-            List<JobSourceFile> result,
+    /**
+     * <p>This method will discover the source files for the job and will
+     * supply each one to the consumer as soon as it is ready.  The files
+     * are supplied in no particular order and the consumer is invoked
+     * concurrently from a number of threads so it must be thread-safe.
+     * This method will return once all of the files have been supplied.</p>
+     *
+     * <p>Reading the meta-data from the files is a stage of its own; as
+     * the directories are walked, the files that need their meta-data
+     * read are queued to a pool of workers so that the meta-data is read
+     * in parallel and alongside the walking of the directories.</p>
+     */
+
+    public static void assembleJobSourceFiles(AbstractJob job, Consumer<JobSourceFile> consumer) {
+        assembleJobSourceFiles(job, false, consumer);
+    }
+
+    /**
+     * <p>As {@link #assembleJobSourceFiles(AbstractJob, Consumer)} but if the
+     * meta-data is deferred then files that are not in the meta-data index
+     * are supplied with their meta-data unresolved.  This is used when the
+     * files are about to be read in full to be thumbnailed so that the
+     * meta-data can be obtained from that same read.</p>
+     */
+
+    public static void assembleJobSourceFiles(
             AbstractJob job,
-            File directoryF) {
-        Preconditions.checkArgument(null!=result, "the result list must be provided");
+            boolean deferMetadata,
+            Consumer<JobSourceFile> consumer) {
         Preconditions.checkArgument(null!=job, "the job must be provided");
+        Preconditions.checkArgument(null!=consumer, "the consumer must be provided");
 
-        if (null == directoryF)
+        if (null == job.getSourceDirectory())
             return;
 
-        if ('.' == directoryF.getName().charAt(0)) // linux and mac put '.' in front of hidden directory
-            return;
+        MetadataIndex metadataIndex = null == job.getMetadataIndexFile() ? null : MetadataIndex.load(job.getMetadataIndexFile());
+        Queue<Future<?>> metadataFutures = new ConcurrentLinkedQueue<>();
+        ExecutorService metadataExecutor = Executors.newFixedThreadPool(job.getMetadataThreadCount());
 
-        for (File leaf : directoryF.listFiles()) {
-            if (leaf.isFile() && ('.' != leaf.getName().charAt(0))) // linux puts '.' in front of hidden files
-            {
-                switch (deriveDataType(leaf)) {
-                    case JPEG -> {
-                        java.util.Date leafT = null;
-                        String description = null;
-
-                        try {
-                            Metadata metadata = ImageMetadataReader.readMetadata(leaf);
-
-                            if (null != metadata) {
-                                leafT = metadata.getDirectoriesOfType(ExifSubIFDDirectory.class)
-                                        .stream()
-                                        .filter(d -> d.containsTag(ExifSubIFDDirectory.TAG_DATETIME_ORIGINAL))
-                                        .findFirst()
-                                        .map(d -> d.getDate(ExifSubIFDDirectory.TAG_DATETIME_ORIGINAL))
-                                        .orElse(leafT);
-                                description = metadata.getDirectoriesOfType(ExifIFD0Directory.class)
-                                        .stream()
-                                        .filter(d -> d.containsTag(ExifIFD0Directory.TAG_IMAGE_DESCRIPTION))
-                                        .findFirst()
-                                        .map(d -> d.getString(ExifIFD0Directory.TAG_IMAGE_DESCRIPTION))
-                                        .orElse(description);
-                            }
-                        } catch (IOException ioe) {
-                            Logger logger = Logger.getLogger(Constants.LOGGER);
-
-                            if (logger.isLoggable(Level.WARNING)) {
-                                logger.log(Level.WARNING, "unable to read the meta data on the file; " + leaf, ioe);
-                            }
-                        } catch (ImageProcessingException ipe) {
-                            Logger logger = Logger.getLogger(Constants.LOGGER);
-
-                            if (logger.isLoggable(Level.WARNING))
-                                logger.log(Level.WARNING, "unable to parse the metadata on the file; " + leaf, ipe);
-                        }
+        try {
+            new DirectoryTraversal(job).traverse((path, attributes) -> {
+                File leaf = path.toFile();
+                long modifiedMillis = attributes.lastModifiedTime().toMillis();
+                MetadataIndex.Entry indexEntry = null == metadataIndex ? null : metadataIndex.lookup(leaf, attributes.size(), modifiedMillis);
 
-                        if (null == leafT)
-                            leafT = new java.util.Date(leaf.lastModified());
+                if (null != indexEntry) {
+                    JobSourceFile jsf = createJobSourceFile(job, leaf, attributes,
+                            new SourceFileMetadata(indexEntry.getTimestamp(), indexEntry.getDescription()),
+                            indexEntry.getContentHash());
+                    jsf.setIndexed(true);
+                    consumer.accept(jsf);
+                } else {
+                    DataType dataType = deriveDataType(leaf);
 
-                        result.add(new JobSourceFile(job, UUID.randomUUID().toString(), leaf, leafT, description));
+                    if (DataType.UNKNOWN != dataType) {
+                        if (deferMetadata) {
+                            consumer.accept(createJobSourceFile(job, leaf, attributes, null, null));
+                        } else {
+                            metadataFutures.add(metadataExecutor.submit(() -> {
+                                SourceFileMetadata metadata = DataType.JPEG == dataType ? readMetadata(leaf) : SourceFileMetadata.EMPTY;
+                                JobSourceFile jsf = createJobSourceFile(job, leaf, attributes, metadata, null);
+                                indexJobSourceFile(metadataIndex, jsf);
+                                consumer.accept(jsf);
+                            }));
+                        }
                     }
-                    case MOVIE -> result.add(new JobSourceFile(
-                            job,
-                            UUID.randomUUID().toString(),
-                            leaf,
-                            new java.util.Date(leaf.lastModified()),
-                            null));
                 }
-            } else {
-                assembleJobSourceFiles(
-                        result,
-                        job,
-                        leaf);
+            });
+
+            for (Future<?> future : metadataFutures) {
+                Futures.getUnchecked(future);
+            }
+
+            if (null != metadataIndex) {
+                metadataIndex.pruneUnvisited(job.getSourceDirectory());
+                saveMetadataIndex(job, metadataIndex);
+            }
+        } finally {
+            metadataExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * <p>This method will create a job source file for a single file that
+     * has been found outside of a traversal of the source directory; for
+     * example when the file has been seen to change.  The meta-data index
+     * is not consulted and the meta-data is left to be resolved later.
+     * NULL is returned if the file is not of a type that can be catalogued.
+     * </p>
+     */
+
+    public static JobSourceFile createJobSourceFile(
+            AbstractJob job,
+            File leaf,
+            BasicFileAttributes attributes) {
+        Preconditions.checkArgument(null!=job, "the job must be provided");
+        Preconditions.checkArgument(null!=leaf, "the file must be provided");
+        Preconditions.checkArgument(null!=attributes, "the attributes must be provided");
+
+        if (DataType.UNKNOWN == deriveDataType(leaf)) {
+            return null;
+        }
+
+        return createJobSourceFile(job, leaf, attributes, null, null);
+    }
+
+    /**
+     * <p>Puts those job source files that are not up to date in the meta-data
+     * index into the index and saves it.  This is for job source files whose
+     * meta-data or content hash has been obtained since they were found.
+     * Nothing is done if the job has no meta-data index.</p>
+     */
+
+    public static void indexJobSourceFiles(AbstractJob job, Collection<JobSourceFile> jsfs) {
+        Preconditions.checkArgument(null!=job, "the job must be provided");
+        Preconditions.checkArgument(null!=jsfs, "the job source files must be provided");
+
+        if (null == job.getMetadataIndexFile()) {
+            return;
+        }
+
+        List<JobSourceFile> unindexedJsfs = jsfs.stream()
+                .filter(jsf -> !jsf.isIndexed() && jsf.isMetadataResolved())
+                .toList();
+
+        if (!unindexedJsfs.isEmpty()) {
+            MetadataIndex metadataIndex = MetadataIndex.load(job.getMetadataIndexFile());
+
+            for (JobSourceFile jsf : unindexedJsfs) {
+                indexJobSourceFile(metadataIndex, jsf);
+            }
+
+            saveMetadataIndex(job, metadataIndex);
+        }
+    }
+
+    private static void saveMetadataIndex(AbstractJob job, MetadataIndex metadataIndex) {
+        try {
+            metadataIndex.save();
+        } catch (IOException ioe) {
+            Logger logger = Logger.getLogger(Constants.LOGGER);
+
+            if (logger.isLoggable(Level.WARNING))
+                logger.log(Level.WARNING, "unable to save the meta data index; " + job.getMetadataIndexFile(), ioe);
+        }
+    }
+
+    private static void indexJobSourceFile(
+            MetadataIndex metadataIndex,
+            JobSourceFile jsf) {
+        if (null != metadataIndex) {
+            metadataIndex.put(jsf.getFile(), new MetadataIndex.Entry(
+                    jsf.getSize(),
+                    jsf.getModifiedMillis(),
+                    jsf.getDataType(),
+                    jsf.getTimestamp(),
+                    jsf.getDescription(),
+                    jsf.getContentHash()));
+            jsf.setIndexed(true);
+        }
+    }
+
+    /**
+     * <p>If the meta-data is NULL then it is left to be resolved later.</p>
+     */
+
+    private static JobSourceFile createJobSourceFile(
+            AbstractJob job,
+            File leaf,
+            BasicFileAttributes attributes,
+            SourceFileMetadata metadata,
+            String contentHash) {
+        return new JobSourceFile(
+                job,
+                UUID.randomUUID().toString(),
+                leaf,
+                attributes.size(),
+                attributes.lastModifiedTime().toMillis(),
+                metadata,
+                contentHash);
+    }
+
+    /**
+     * <p>Returns a hash of the content supplied.  The position of the buffer
+     * is not changed.</p>
+     */
+
+    static String hashContent(ByteBuffer content) {
+        return Hashing.sha256().hashBytes(content.duplicate()).toString();
+    }
+
+    static String hashContent(File leaf) throws IOException {
+        return com.google.common.io.Files.asByteSource(leaf).hash(Hashing.sha256()).toString();
+    }
+
+    /**
+     * <p>Reads the capture timestamp and the description from the EXIF
+     * data of the JPEG file.  If the meta-data is not able to be read then
+     * this will log the problem and return empty meta-data.</p>
+     *
+     * <p>A bounded read of just the Exif segment is tried first and only
+     * if that is not able to cope with the file is the full meta-data
+     * library used.</p>
+     */
+
+    static SourceFileMetadata readMetadata(File leaf) {
+        try (FileChannel channel = FileChannel.open(leaf.toPath(), StandardOpenOption.READ)) {
+            return ExifHelper.readMetadata(channel);
+        } catch (IOException ioe) {
+            Logger logger = Logger.getLogger(Constants.LOGGER);
+
+            if (logger.isLoggable(Level.FINE))
+                logger.log(Level.FINE, "unable to read the exif data directly; will read all meta data on the file; " + leaf, ioe);
+        }
+
+        return readMetadataFully(leaf);
+    }
+
+    /**
+     * <p>As {@link #readMetadata(File)} but the Exif segment is read from
+     * the JPEG data of the file which is already in memory.</p>
+     */
+
+    static SourceFileMetadata readMetadata(File leaf, ByteBuffer jpegData) {
+        try {
+            return ExifHelper.readMetadata(jpegData);
+        } catch (IOException ioe) {
+            Logger logger = Logger.getLogger(Constants.LOGGER);
+
+            if (logger.isLoggable(Level.FINE))
+                logger.log(Level.FINE, "unable to read the exif data directly; will read all meta data on the file; " + leaf, ioe);
+        }
+
+        return readMetadataFully(leaf);
+    }
+
+    private static SourceFileMetadata readMetadataFully(File leaf) {
+        java.util.Date leafT = null;
+        String description = null;
+
+        try {
+            Metadata metadata = ImageMetadataReader.readMetadata(leaf);
+
+            if (null != metadata) {
+                leafT = metadata.getDirectoriesOfType(ExifSubIFDDirectory.class)
+                        .stream()
+                        .filter(d -> d.containsTag(ExifSubIFDDirectory.TAG_DATETIME_ORIGINAL))
+                        .findFirst()
+                        .map(d -> d.getDate(ExifSubIFDDirectory.TAG_DATETIME_ORIGINAL))
+                        .orElse(leafT);
+                description = metadata.getDirectoriesOfType(ExifIFD0Directory.class)
+                        .stream()
+                        .filter(d -> d.containsTag(ExifIFD0Directory.TAG_IMAGE_DESCRIPTION))
+                        .findFirst()
+                        .map(d -> d.getString(ExifIFD0Directory.TAG_IMAGE_DESCRIPTION))
+                        .orElse(description);
             }
+        } catch (IOException ioe) {
+            Logger logger = Logger.getLogger(Constants.LOGGER);
+
+            if (logger.isLoggable(Level.WARNING)) {
+                logger.log(Level.WARNING, "unable to read the meta data on the file; " + leaf, ioe);
+            }
+        } catch (ImageProcessingException ipe) {
+            Logger logger = Logger.getLogger(Constants.LOGGER);
+
+            if (logger.isLoggable(Level.WARNING))
+                logger.log(Level.WARNING, "unable to parse the metadata on the file; " + leaf, ipe);
         }
 
+        return new SourceFileMetadata(leafT, description);
     }
 
 }
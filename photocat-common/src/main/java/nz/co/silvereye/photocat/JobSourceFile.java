@@ -12,13 +12,23 @@ import nz.co.silvereye.photocat.JobHelper.DataType;
 
 import java.io.File;
 import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * <p>This class represents a job source file.  A job source file
- * keeps track of the original file, the thumbnail file if one has
+ * keeps track of the original file, the thumbnail if one has
  * been generated yet.  The timestamp of the file (which is probably
  * derived by looking the EXIF data or similar.  Each file also
  * gets a code that can be used to uniquely identify it.</p>
+ *
+ * <p>The meta-data of the file may be left unresolved when the job
+ * source file is created so that it can be read from the data of the
+ * file while the file is being thumbnailed rather than by reading the
+ * file separately.  If the timestamp or the description is asked for
+ * before then, the meta-data is read from the file at that point.</p>
  */
 
 public class JobSourceFile implements Comparable<JobSourceFile> {
@@ -31,18 +41,29 @@ public class JobSourceFile implements Comparable<JobSourceFile> {
     private final File file;
 
     /**
-     * <p>This file is a pointer to a thumbnail that has been generated
-     * for the file.</p>
+     * <p>These are pointers to the thumbnails that have been generated for
+     * the file by their size; the first is at the job's maximum width or
+     * height and any others are at the job's additional sizes.  The
+     * thumbnails are kept in the job's thumbnail store.</p>
+     */
+
+    private Map<Integer, ThumbnailStore.Thumbnail> thumbnails = Collections.emptyMap();
+
+    /**
+     * <p>These are the size and the modification time of the file at the
+     * time that it was found.</p>
      */
 
-    private File thumbnailFile;
+    private final long size;
+
+    private final long modifiedMillis;
 
     /**
      * <p>This timestamp is generated by looking at the EXIF data or
      * even be looking at the timestamp of the file itself.</p>
      */
 
-    private final java.util.Date timestamp;
+    private java.util.Date timestamp;
 
     /**
      * <p>This code can be used to uniquely identify the source file.</p>
@@ -54,25 +75,53 @@ public class JobSourceFile implements Comparable<JobSourceFile> {
      * @since 2016-09-19
      */
 
-    private final String description;
+    private String description;
+
+    private boolean metadataResolved;
+
+    /**
+     * <p>This is a hash of the content of the file which can be used to
+     * find files that are identical.  It is NULL if the content has not
+     * been hashed.</p>
+     */
+
+    private volatile String contentHash;
+
+    /**
+     * <p>This is true if the meta-data index has the current meta-data and
+     * content hash of the file.</p>
+     */
+
+    private volatile boolean indexed;
 
     protected AbstractJob job;
 
+    /**
+     * <p>If the meta-data is NULL then it is resolved later.</p>
+     */
+
     JobSourceFile(
             AbstractJob job,
             String code,
             File file,
-            java.util.Date timestamp,
-            String description) {
+            long size,
+            long modifiedMillis,
+            SourceFileMetadata metadata,
+            String contentHash) {
         super();
 
         this.job = job;
         this.code = code;
         this.file = file;
-        this.timestamp = timestamp;
-        this.description = description;
+        this.size = size;
+        this.modifiedMillis = modifiedMillis;
+        this.contentHash = contentHash;
 
-        thumbnailFile = null;
+        if (null != metadata) {
+            resolveMetadata(metadata);
+        }
+
+        thumbnails = Collections.emptyMap();
     }
 
     public DataType getDataType() {
@@ -91,16 +140,62 @@ public class JobSourceFile implements Comparable<JobSourceFile> {
         return file;
     }
 
+    public long getSize() {
+        return size;
+    }
+
+    public long getModifiedMillis() {
+        return modifiedMillis;
+    }
+
+    public synchronized boolean isMetadataResolved() {
+        return metadataResolved;
+    }
+
+    /**
+     * <p>Sets the meta-data for the file.  If there is no timestamp in the
+     * meta-data then the modification time of the file is used.</p>
+     */
+
+    synchronized void resolveMetadata(SourceFileMetadata metadata) {
+        timestamp = null == metadata.getTimestamp() ? new java.util.Date(modifiedMillis) : metadata.getTimestamp();
+        description = metadata.getDescription();
+        metadataResolved = true;
+        indexed = false;
+    }
+
+    synchronized void ensureMetadataResolved() {
+        if (!metadataResolved) {
+            resolveMetadata(DataType.JPEG == getDataType() ? JobHelper.readMetadata(file) : SourceFileMetadata.EMPTY);
+        }
+    }
+
     public java.util.Date getTimestamp() {
+        ensureMetadataResolved();
         return timestamp;
     }
 
-    public File getThumbnailFile() {
-        return thumbnailFile;
+    /**
+     * <p>Returns the thumbnail at the job's maximum width or height or NULL
+     * if there is no thumbnail.</p>
+     */
+
+    public ThumbnailStore.Thumbnail getThumbnail() {
+        Iterator<ThumbnailStore.Thumbnail> iterator = thumbnails.values().iterator();
+        return iterator.hasNext() ? iterator.next() : null;
+    }
+
+    /**
+     * <p>Returns the thumbnails by their size in the order in which the job
+     * has the sizes.</p>
+     */
+
+    public Map<Integer, ThumbnailStore.Thumbnail> getThumbnails() {
+        return thumbnails;
     }
 
-    public void setThumbnailFile(File file) {
-        thumbnailFile = file;
+    public void setThumbnails(Map<Integer, ThumbnailStore.Thumbnail> value) {
+        thumbnails = null == value ? Collections.emptyMap() : Collections.unmodifiableMap(new LinkedHashMap<>(value));
     }
 
     public String getName() {
@@ -108,9 +203,27 @@ public class JobSourceFile implements Comparable<JobSourceFile> {
     }
 
     public String getDescription() {
+        ensureMetadataResolved();
         return description;
     }
 
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    void setContentHash(String value) {
+        contentHash = value;
+        indexed = false;
+    }
+
+    public boolean isIndexed() {
+        return indexed;
+    }
+
+    void setIndexed(boolean value) {
+        indexed = value;
+    }
+
     @Override
     public int compareTo(JobSourceFile o) {
         int result = getTimestamp().compareTo(o.getTimestamp());
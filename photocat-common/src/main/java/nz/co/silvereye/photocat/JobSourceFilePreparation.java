@@ -9,14 +9,22 @@
 package nz.co.silvereye.photocat;
 
 import com.google.common.base.Preconditions;
-import org.imgscalr.Scalr;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.imageio.ImageIO;
-import javax.xml.transform.TransformerException;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.function.Predicate;
 
 /**
  * <p>This is a process which is configured with a source job
@@ -30,40 +38,593 @@ public class JobSourceFilePreparation implements Runnable {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(JobSourceFilePreparation.class);
 
+    /**
+     * <p>A JPEG file typically holds a little under a byte for every four
+     * pixels; this is used to guess the size of an image from the size of
+     * the file when the frame header is not able to be read.</p>
+     */
+
+    private static final long ESTIMATED_PIXELS_PER_BYTE = 4;
+
+    /**
+     * <p>A movie is thumbnailed by launching ffmpeg to grab a frame which
+     * is then scaled so it is costed as a large image.</p>
+     */
+
+    private static final long ESTIMATED_MOVIE_COST = 64L * 1024 * 1024;
+
+    /**
+     * <p>This is the smallest size of the bands of an image that is decoded
+     * in bands.</p>
+     */
+
+    private static final long MINIMUM_BAND_BYTES = 16L * 1024 * 1024;
+
+    /**
+     * <p>This is changed when the way that thumbnails are made changes so
+     * that thumbnails made the old way are not taken from the thumbnail
+     * cache.</p>
+     */
+
+    private static final String THUMBNAIL_FORMAT_VERSION = "2";
+
     private final JobSourceFile jobSourceFile;
 
+    /**
+     * <p>These are the sizes of the thumbnails in the order in which the
+     * job has them.</p>
+     */
+
+    private final List<Integer> thumbnailSizes;
+
+    /**
+     * <p>If the job has a thumbnail cache then these are the keys under
+     * which the thumbnails are looked for and stored in the same order as
+     * the sizes.</p>
+     */
+
+    private List<String> thumbnailCacheKeys = null;
+
+    /**
+     * <p>This is the memory reserved from the job's decode memory budget
+     * while the image is decoded and scaled.</p>
+     */
+
+    private volatile MemoryBudget.Reservation decodeReservation = null;
+
     public JobSourceFilePreparation(JobSourceFile jobSourceFile) {
         Preconditions.checkArgument(null!=jobSourceFile, "the job source file must be provided");
         this.jobSourceFile = jobSourceFile;
+        this.thumbnailSizes = jobSourceFile.getJob().getThumbnailSizes();
     }
 
-    private void createThumbnail(OutputStream outputStream) throws Exception {
-        Preconditions.checkArgument(null!=outputStream, "the output stream must be provided");
+    /**
+     * <p>Returns an estimate of the work that this preparation will take in
+     * units of roughly one decoded pixel.  This is used to start the most
+     * expensive preparations first so that the job does not end up waiting
+     * on one large file after the other files are done.  For a JPEG this
+     * reads the frame header from the file.</p>
+     */
+
+    public long estimateCost() {
+        File file = jobSourceFile.getFile();
+
+        return switch (jobSourceFile.getDataType()) {
+            case JPEG -> {
+                try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                    yield JpegHelper.readFrame(channel).getPixelCount();
+                } catch (IOException ioe) {
+                    LOGGER.debug("unable to read the jpeg frame header; will estimate from the file size; {}", file, ioe);
+                    yield file.length() * ESTIMATED_PIXELS_PER_BYTE;
+                }
+            }
+            case MOVIE -> ESTIMATED_MOVIE_COST;
+            default -> 0;
+        };
+    }
 
-        Preconditions.checkNotNull(outputStream);
+    public JobSourceFile getJobSourceFile() {
+        return jobSourceFile;
+    }
 
-        switch (JobHelper.deriveDataType(jobSourceFile.getFile())) {
-            case JPEG -> createThumbnailJpeg(outputStream);
-            case MOVIE -> createThumbnailMovie(outputStream);
+    // ----------------------------------------------
+    // STAGES
+    // ----------------------------------------------
+
+    // The preparation is broken into stages so that each stage can be run on
+    // a pool of threads suited to it; the read stage mostly waits on storage
+    // while the later stages are mostly using the CPU.  Running the stages
+    // one after the other with run() gives the same result.
+
+    /**
+     * <p>This is the first stage of the preparation.  It reads the JPEG data
+     * that is to be thumbnailed into memory.  For a movie this is a frame
+     * grabbed from the movie.  NULL is returned if there is nothing to
+     * thumbnail.</p>
+     *
+     * <p>A JPEG file is read only once; it is mapped into memory and the
+     * meta-data, if it is not yet resolved, and the content hash, if the
+     * job is de-duplicating, are obtained from the mapped data as well as
+     * the JPEG data to thumbnail.  Once the content hash is known, the
+     * preparation only goes on if the predicate allows it; otherwise NULL
+     * is returned.  The mapped data is loaded into memory in this stage so
+     * that the later stages do not wait on storage.</p>
+     *
+     * <p>If the JPEG file has a preview image embedded in its Exif data that
+     * is at least as large as the thumbnail then the preview is returned so
+     * that the main image does not need to be decoded.</p>
+     *
+     * <p>If the job has a thumbnail cache and the thumbnail is in it then
+     * the thumbnail is taken from the cache and NULL is returned.  In this
+     * case the file is not hashed and so is only de-duplicated if its
+     * content hash was already known.</p>
+     */
+
+    public ByteBuffer read(Predicate<JobSourceFile> proceedAfterHashing) throws Exception {
+        Preconditions.checkArgument(null!=proceedAfterHashing, "the predicate must be provided");
+
+        if (readFromThumbnailCache()) {
+            return null;
         }
+
+        return switch (jobSourceFile.getDataType()) {
+            case JPEG -> readJpeg(proceedAfterHashing);
+            case MOVIE -> {
+                if (!jobSourceFile.isMetadataResolved()) {
+                    jobSourceFile.resolveMetadata(SourceFileMetadata.EMPTY);
+                }
+
+                if (jobSourceFile.getJob().isDeduplicate() && null == jobSourceFile.getContentHash()) {
+                    jobSourceFile.setContentHash(JobHelper.hashContent(jobSourceFile.getFile()));
+                }
+
+                if (!proceedAfterHashing.test(jobSourceFile)) {
+                    yield null;
+                }
+
+                byte[] frameData = readMovieFrame();
+                yield null == frameData ? null : ByteBuffer.wrap(frameData);
+            }
+            default -> null;
+        };
     }
 
-    private void createScaledJpeg(File inputFile, OutputStream outputStream) throws TransformerException {
-        Preconditions.checkArgument(null!=outputStream, "the output stream must be provided");
-        Preconditions.checkArgument(null!=inputFile, "the input file must be provided");
+    /**
+     * <p>This is the second stage of the preparation which decodes the JPEG
+     * data from the first stage.  The data is decoded directly from memory.
+     * Where it can be, the image is decoded at a reduced size that is still
+     * larger than the thumbnail which is much quicker than decoding the
+     * whole image; see {@link ScaledJpegDecoder}.  The decoded image is
+     * backed by an array from the job's {@link ImageBufferPool} where its
+     * type allows this; the array is returned to the pool once the image has
+     * been scaled.</p>
+     *
+     * <p>An image that has to be decoded at its full size and that would not
+     * fit in the job's decode memory budget is decoded in bands instead; see
+     * {@link #decodeInBands(ImageReader)}.  In this case the image that is
+     * returned has already been scaled.</p>
+     */
+
+    public BufferedImage decode(ByteBuffer jpegData) throws Exception {
+        Preconditions.checkArgument(null!=jpegData, "the jpeg data must be provided");
+        AbstractJob job = jobSourceFile.getJob();
+        JpegHelper.Frame frame = readFrame(jpegData);
+        boolean reducible = null != frame && isReducible(frame);
+        boolean decodeInBands = null != frame
+                && estimateFullDecodeBytes(frame) > job.getDecodeMemoryBudget().getBytes();
+
+        reserveDecodeMemory(null == frame
+                ? jpegData.limit() * ESTIMATED_PIXELS_PER_BYTE * 3
+                : reducible ? estimateDecodeBytes(frame) : estimateWholeDecodeBytes(frame, decodeInBands));
 
         try {
-            BufferedImage bi = ImageIO.read(inputFile);
-            BufferedImage scaledBi = Scalr.resize(bi, jobSourceFile.getJob().getMaximumWidthOrHeightPixels());
-            ImageIO.write(scaledBi, "JPG", outputStream);
-        } catch (Throwable th) {
-            throw new TransformerException("unable to process the file into a thumbnail; " + jobSourceFile.getFile(), th);
+            BufferedImage bi = ScaledJpegDecoder.decode(
+                    jpegData, getLargestThumbnailSize(), job.getImageBufferPool());
+
+            if (null != bi) {
+                return bi;
+            }
+        } catch (IOException ioe) {
+            LOGGER.warn("unable to decode at a reduced size; will decode the whole image; {}",
+                    jobSourceFile.getFile(), ioe);
+        }
+
+        // the image was expected to be decoded at a reduced size but it is
+        // of a kind that only ImageIO decodes, such as CMYK, so the whole
+        // image is decoded, in bands if it is too large, and the reservation
+        // has to cover that instead.
+
+        if (reducible) {
+            releaseDecodeMemory();
+            reserveDecodeMemory(estimateWholeDecodeBytes(frame, decodeInBands));
+        }
+
+        ImageCodecs imageCodecs = ImageCodecs.forCurrentThread();
+
+        try (ImageInputStream iis = createImageInputStream(jpegData)) {
+            ImageReader reader = imageCodecs.acquireReader(iis);
+
+            try {
+                // decoding in bands reads the image data again for each band
+                // so the reader has to be able to seek back.
+
+                reader.setInput(iis, !decodeInBands, true);
+
+                if (decodeInBands) {
+                    BufferedImage result = decodeInBands(reader);
+
+                    if (null != result) {
+                        return result;
+                    }
+                }
+
+                return reader.read(0, createImageReadParam(reader));
+            } finally {
+                imageCodecs.releaseReader(reader);
+            }
+        }
+    }
+
+    /**
+     * <p>If the image will be decoded into a type of image that the pool
+     * supports then the image is decoded into an image backed by an array
+     * from the pool.</p>
+     */
+
+    private ImageReadParam createImageReadParam(ImageReader reader) throws IOException {
+        ImageReadParam result = reader.getDefaultReadParam();
+        int imageType = getImageType(reader);
+
+        if (ImageBufferPool.isSupported(imageType)) {
+            result.setDestination(jobSourceFile.getJob().getImageBufferPool().createImage(
+                    reader.getWidth(0), reader.getHeight(0), imageType));
+        }
+
+        return result;
+    }
+
+    private static int getImageType(ImageReader reader) throws IOException {
+        Iterator<ImageTypeSpecifier> imageTypes = reader.getImageTypes(0);
+        return imageTypes.hasNext() ? imageTypes.next().getBufferedImageType() : BufferedImage.TYPE_CUSTOM;
+    }
+
+    /**
+     * <p>Decodes the image a band of rows at a time, from the top down,
+     * with each band added into an {@link AreaAveragingScaler} so that only
+     * one band of the image is held in memory at once.  The scaled image is
+     * returned.  Each band is decoded into the same array from the pool.
+     * </p>
+     *
+     * <p>ImageIO decodes the image from the start for each band, as far as
+     * the bottom of the band, so this takes longer than decoding the whole
+     * image in one go.  The image is always scaled by area averaging, with
+     * the job's scaling quality, whatever the job's scaling backend is.
+     * NULL is returned if the image is not of a type that can be decoded in
+     * bands or would not be made smaller by scaling.</p>
+     */
+
+    private BufferedImage decodeInBands(ImageReader reader) throws IOException {
+        AbstractJob job = jobSourceFile.getJob();
+        ImageBufferPool imageBufferPool = job.getImageBufferPool();
+        int imageType = getImageType(reader);
+
+        if (!ImageBufferPool.isSupported(imageType)) {
+            return null;
+        }
+
+        int width = reader.getWidth(0);
+        int height = reader.getHeight(0);
+        AreaAveragingScaler scaler = AreaAveragingScaler.create(
+                width, height, imageType, getLargestThumbnailSize(), job.getScalingQuality());
+
+        if (null == scaler) {
+            return null;
+        }
+
+        int bandHeight = getBandHeight(width, BufferedImage.TYPE_BYTE_GRAY == imageType ? 1 : 3);
+
+        LOGGER.info("will decode the image in bands of {} rows; {}", bandHeight, jobSourceFile.getName());
+
+        for (int y = 0; y < height; y += bandHeight) {
+            ImageReadParam param = reader.getDefaultReadParam();
+            BufferedImage band = imageBufferPool.createImage(width, Math.min(bandHeight, height - y), imageType);
+
+            try {
+                param.setSourceRegion(new Rectangle(0, y, width, band.getHeight()));
+                param.setDestination(band);
+                scaler.addRows(reader.read(0, param));
+            } finally {
+                imageBufferPool.release(band);
+            }
+        }
+
+        return scaler.getResult();
+    }
+
+    /**
+     * <p>Each band means that ImageIO decodes the image again so the bands
+     * are made as large as they can be; half of the job's decode memory
+     * budget.  The height of a band is a multiple of the sixteen rows that
+     * the largest JPEG blocks cover.</p>
+     */
+
+    private int getBandHeight(int width, int samples) {
+        long bandBytes = Math.max(MINIMUM_BAND_BYTES, jobSourceFile.getJob().getDecodeMemoryBudget().getBytes() / 2);
+        long rows = bandBytes / ((long) width * samples);
+        return (int) Math.max(16, Math.min(Integer.MAX_VALUE - 15, rows) / 16 * 16);
+    }
+
+    /**
+     * <p>This is the third stage of the preparation which scales the decoded
+     * image down to the sizes of the thumbnails.  The scaled images are
+     * returned in the same order as the job has the sizes.  The decoded
+     * image is only scaled to the largest size; each smaller size is then
+     * scaled from the next larger thumbnail which is much less work.  An
+     * image that has already been scaled while it was decoded is used as it
+     * is.  The decoded image is not used after this so its array is
+     * returned to the pool.</p>
+     */
+
+    public List<BufferedImage> scale(BufferedImage bi) {
+        Preconditions.checkArgument(null!=bi, "the image must be provided");
+        AbstractJob job = jobSourceFile.getJob();
+        Map<Integer, BufferedImage> scaledBis = new HashMap<>();
+        BufferedImage previous = bi;
+
+        for (int size : getSizesLargestFirst()) {
+            previous = Math.max(previous.getWidth(), previous.getHeight()) == size
+                    ? previous
+                    : job.getScalingBackend().scale(previous, size, job.getScalingQuality());
+            scaledBis.put(size, previous);
+        }
+
+        if (!scaledBis.containsValue(bi)) {
+            job.getImageBufferPool().release(bi);
+        }
+
+        releaseDecodeMemory();
+
+        List<BufferedImage> result = new ArrayList<>();
+
+        for (int size : thumbnailSizes) {
+            result.add(scaledBis.get(size));
+        }
+
+        return result;
+    }
+
+    private List<Integer> getSizesLargestFirst() {
+        List<Integer> result = new ArrayList<>(thumbnailSizes);
+        result.sort(Comparator.reverseOrder());
+        return result;
+    }
+
+    private int getLargestThumbnailSize() {
+        return Collections.max(thumbnailSizes);
+    }
+
+    /**
+     * <p>Waits until there is enough of the job's decode memory budget left
+     * for the image to be decoded and scaled.</p>
+     */
+
+    private void reserveDecodeMemory(long bytes) throws InterruptedException {
+        MemoryBudget budget = jobSourceFile.getJob().getDecodeMemoryBudget();
+        MemoryBudget.Reservation reservation = budget.tryReserve(bytes);
+
+        if (null == reservation) {
+            LOGGER.info("waiting for {} bytes of the decode memory budget to be available; {}",
+                    bytes, jobSourceFile.getName());
+            reservation = budget.reserve(bytes);
+        }
+
+        decodeReservation = reservation;
+    }
+
+    private void releaseDecodeMemory() {
+        MemoryBudget.Reservation reservation = decodeReservation;
+
+        if (null != reservation) {
+            reservation.release();
+            decodeReservation = null;
+        }
+    }
+
+    /**
+     * <p>Returns the frame header of the JPEG data or NULL if it is not able
+     * to be read.</p>
+     */
+
+    private JpegHelper.Frame readFrame(ByteBuffer jpegData) {
+        try {
+            return JpegHelper.readFrame(jpegData);
+        } catch (IOException ioe) {
+            LOGGER.debug("unable to read the jpeg frame header; will estimate from the data size; {}",
+                    jobSourceFile.getFile(), ioe);
+            return null;
+        }
+    }
+
+    /**
+     * <p>Returns true if {@link ScaledJpegDecoder} is expected to decode the
+     * image at a reduced size.</p>
+     */
+
+    private boolean isReducible(JpegHelper.Frame frame) {
+        return !frame.isProgressive() && getReducedScale(frame) < 8;
+    }
+
+    private int getReducedScale(JpegHelper.Frame frame) {
+        return ScaledJpegDecoder.chooseScale(
+                frame.getWidth(), frame.getHeight(), getLargestThumbnailSize());
+    }
+
+    /**
+     * <p>Estimates the memory needed to decode and scale the image from its
+     * frame header.  This is the decoded image, which is at a reduced size
+     * where {@link ScaledJpegDecoder} is able to decode it; see
+     * {@link #estimateFullDecodeBytes(JpegHelper.Frame)} otherwise.</p>
+     */
+
+    private long estimateDecodeBytes(JpegHelper.Frame frame) {
+        if (isReducible(frame)) {
+            int scale = getReducedScale(frame);
+            long scaledPixels = (((long) frame.getWidth() * scale + 7) / 8)
+                    * ((frame.getHeight() * scale + 7) / 8);
+            return scaledPixels * (getSamples(frame) + frame.getComponentCount());
+        }
+
+        return estimateFullDecodeBytes(frame);
+    }
+
+    /**
+     * <p>This is the image decoded at its full size together with the
+     * coefficients that are kept for the whole of a progressive image and
+     * the intermediate images that imgscalr makes.</p>
+     */
+
+    private long estimateFullDecodeBytes(JpegHelper.Frame frame) {
+        long pixels = frame.getPixelCount();
+        long result = pixels * getSamples(frame) + estimateCoefficientBytes(frame);
+
+        if (ScalingBackend.JAVA2D == jobSourceFile.getJob().getScalingBackend()) {
+            result += pixels * 4;
+        }
+
+        return result;
+    }
+
+    private long estimateWholeDecodeBytes(JpegHelper.Frame frame, boolean decodeInBands) {
+        return decodeInBands ? estimateBandedDecodeBytes(frame) : estimateFullDecodeBytes(frame);
+    }
+
+    /**
+     * <p>When the image is decoded in bands, only a band of the image is
+     * held at once but the coefficients of a progressive image are still
+     * all kept while each band is decoded.</p>
+     */
+
+    private long estimateBandedDecodeBytes(JpegHelper.Frame frame) {
+        int samples = getSamples(frame);
+        return (long) getBandHeight(frame.getWidth(), samples) * frame.getWidth() * samples
+                + estimateCoefficientBytes(frame);
+    }
+
+    private static long estimateCoefficientBytes(JpegHelper.Frame frame) {
+        return frame.isProgressive() ? frame.getPixelCount() * frame.getComponentCount() * 2 : 0;
+    }
+
+    private static int getSamples(JpegHelper.Frame frame) {
+        return frame.getComponentCount() >= 3 ? 3 : 1;
+    }
+
+    /**
+     * <p>This is the final stage of the preparation which encodes the scaled
+     * images, in the same order as the job has the sizes, into the job's
+     * thumbnail store with the job's {@link ThumbnailEncoder}.  The encoder
+     * is kept for the thread and it writes straight into memory.</p>
+     */
+
+    public void encode(List<BufferedImage> scaledBis) throws Exception {
+        Preconditions.checkArgument(null!=scaledBis, "the scaled images must be provided");
+        Preconditions.checkArgument(scaledBis.size() == thumbnailSizes.size(), "an image is needed for each size");
+        AbstractJob job = jobSourceFile.getJob();
+        ThumbnailCache thumbnailCache = job.getThumbnailCache();
+        Map<Integer, ThumbnailStore.Thumbnail> thumbnails = new LinkedHashMap<>();
+
+        for (int i = 0; i < thumbnailSizes.size(); i++) {
+            byte[] thumbnailData = job.getThumbnailEncoder().encode(scaledBis.get(i));
+
+            if (null != thumbnailCache && null != thumbnailCacheKeys) {
+                thumbnailCache.put(thumbnailCacheKeys.get(i), thumbnailData);
+            }
+
+            thumbnails.put(thumbnailSizes.get(i), job.getThumbnailStore().put(thumbnailData));
         }
+
+        jobSourceFile.setThumbnails(thumbnails);
+    }
+
+    /**
+     * <p>This is invoked if any of the stages has failed.</p>
+     */
+
+    public void fail(Throwable th) {
+        releaseDecodeMemory();
+        jobSourceFile.setThumbnails(null);
+        LOGGER.error("unable to convert the file; {}", jobSourceFile.getName(), th);
     }
 
-    private void createThumbnailMovie(OutputStream outputStream) throws Exception {
-        Preconditions.checkArgument(null!=outputStream, "the output stream must be provided");
+    /**
+     * <p>The key identifies the content of the file by its path, size and
+     * modification time.  The content hash is not used even where it is
+     * known because it may only become known after the cache has been
+     * looked up; a thumbnail stored under the path would then be looked up
+     * by the hash on the next run and missed.  The key also has the
+     * parameters that affect the thumbnail including the size of the
+     * thumbnail that it is scaled from, if any.</p>
+     */
+
+    private String createThumbnailCacheKey(int size) {
+        AbstractJob job = jobSourceFile.getJob();
+
+        return ThumbnailCache.createKey(
+                THUMBNAIL_FORMAT_VERSION,
+                "file:" + jobSourceFile.getFile().getAbsolutePath()
+                        + ":" + jobSourceFile.getSize()
+                        + ":" + jobSourceFile.getModifiedMillis(),
+                "size:" + size,
+                "scaledfrom:" + getScaledFrom(size),
+                "preview:" + job.isEmbeddedPreviewUsed(),
+                "scaling:" + job.getScalingBackend() + ":" + job.getScalingQuality(),
+                "encoder:" + job.getThumbnailEncoder());
+    }
+
+    private String getScaledFrom(int size) {
+        List<Integer> sizesLargestFirst = getSizesLargestFirst();
+        int index = sizesLargestFirst.indexOf(size);
+        return 0 == index ? "image" : Integer.toString(sizesLargestFirst.get(index - 1));
+    }
+
+    /**
+     * <p>Returns true if the thumbnails were able to be obtained from the
+     * thumbnail cache; all of the sizes have to be in the cache.  The
+     * meta-data is still needed for the output and so is read here if it
+     * is not yet resolved.</p>
+     */
+
+    private boolean readFromThumbnailCache() throws IOException {
+        ThumbnailCache thumbnailCache = jobSourceFile.getJob().getThumbnailCache();
+
+        if (null == thumbnailCache) {
+            return false;
+        }
+
+        thumbnailCacheKeys = new ArrayList<>();
+        List<byte[]> thumbnailDatas = new ArrayList<>();
+
+        for (int size : thumbnailSizes) {
+            String thumbnailCacheKey = createThumbnailCacheKey(size);
+            thumbnailCacheKeys.add(thumbnailCacheKey);
+            thumbnailDatas.add(thumbnailCache.get(thumbnailCacheKey));
+        }
+
+        if (thumbnailDatas.contains(null)) {
+            return false;
+        }
+
+        Map<Integer, ThumbnailStore.Thumbnail> thumbnails = new LinkedHashMap<>();
+
+        for (int i = 0; i < thumbnailSizes.size(); i++) {
+            thumbnails.put(thumbnailSizes.get(i), jobSourceFile.getJob().getThumbnailStore().put(thumbnailDatas.get(i)));
+        }
+
+        jobSourceFile.ensureMetadataResolved();
+        jobSourceFile.setThumbnails(thumbnails);
+        return true;
+    }
 
+    private byte[] readMovieFrame() throws Exception {
         File ffmpegBinaryFile = jobSourceFile.getJob().getFfmpegBinary();
 
         // the only (easy) way this can be done for now which actually works
@@ -91,9 +652,12 @@ public class JobSourceFilePreparation implements Runnable {
 
             Process proc = pb.start();
 
-            if (0 == proc.waitFor()) {
-                createScaledJpeg(frameTempFile, outputStream);
+            if (0 != proc.waitFor()) {
+                LOGGER.warn("ffmpeg was not able to create a frame-grab from the movie; {}", jobSourceFile.getFile().getName());
+                return null;
             }
+
+            return java.nio.file.Files.readAllBytes(frameTempFile.toPath());
         } finally {
             if(null!=frameTempFile) {
                 if (frameTempFile.exists()) {
@@ -105,9 +669,28 @@ public class JobSourceFilePreparation implements Runnable {
         }
     }
 
-    private void createThumbnailJpeg(OutputStream outputStream) throws Exception {
+    private MappedByteBuffer mapFile() throws IOException {
+        try (FileChannel channel = FileChannel.open(jobSourceFile.getFile().toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("the file is too large to be mapped into memory; " + jobSourceFile.getFile());
+            }
+
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, size).load();
+        }
+    }
+
+    /**
+     * <p>For a JPEG file, the unnecessary segments are skipped over as the
+     * data is decoded.  The frame grabbed from a movie is decoded as it
+     * is.</p>
+     */
 
-        Preconditions.checkArgument(null!=outputStream, "the output stream must be provided");
+    private ImageInputStream createImageInputStream(ByteBuffer jpegData) throws Exception {
+        if (JobHelper.DataType.JPEG != jobSourceFile.getDataType()) {
+            return new ByteBufferImageInputStream(jpegData);
+        }
 
         // first strip any EXIF data from the JPEG file.  This seems to be a problem
         // which can happen sometimes;
@@ -120,56 +703,101 @@ public class JobSourceFilePreparation implements Runnable {
         // cope.  Maybe not the best, but I'm sure it is fine when making some basic
         // thumbnails.
 
-        File massagedJpegFile = null;
-
         try {
-            FileInputStream fis = null;
-            FileOutputStream fos = null;
-            BufferedInputStream bis = null;
-            BufferedOutputStream bos = null;
+            LOGGER.info("stripping unnecessary data from; {}",jobSourceFile.getName());
+            return JpegHelper.createStrippedImageInputStream(jpegData);
+        } catch (Throwable th) {
+            throw new Exception("unable to strip EXIF data from the JPEG file; " + jobSourceFile.getFile(), th);
+        }
+    }
 
-            try {
-                massagedJpegFile = File.createTempFile(jobSourceFile.getCode() + "-STRIPPED", ".JPG");
-                fis = new FileInputStream(jobSourceFile.getFile());
-                fos = new FileOutputStream(massagedJpegFile);
-                bis = new BufferedInputStream(fis, 10 * 1024);
-                bos = new BufferedOutputStream(fos, 10 * 1024);
+    private ByteBuffer readJpeg(Predicate<JobSourceFile> proceedAfterHashing) throws Exception {
+        File file = jobSourceFile.getFile();
+        MappedByteBuffer data = mapFile();
 
-                LOGGER.info("stripping unnecessary data (into temporary file) from; {}",jobSourceFile.getName());
+        if (!jobSourceFile.isMetadataResolved()) {
+            jobSourceFile.resolveMetadata(JobHelper.readMetadata(file, data));
+        }
 
-                JpegHelper.passThroughJpegImageWithUnnecessarySegmentsStripped(bis, bos);
-            } catch (Throwable th) {
-                throw new Exception("unable to strip EXIF data from the JPEG file; " + jobSourceFile.getFile(), th);
-            } finally {
-                Closeables.closeQuietly(bis);
-                Closeables.closeQuietly(bos);
-                Closeables.closeQuietly(fis);
-                Closeables.closeQuietly(fos);
+        if (jobSourceFile.getJob().isDeduplicate() && null == jobSourceFile.getContentHash()) {
+            jobSourceFile.setContentHash(JobHelper.hashContent(data));
+        }
+
+        if (!proceedAfterHashing.test(jobSourceFile)) {
+            return null;
+        }
+
+        if (jobSourceFile.getJob().isEmbeddedPreviewUsed()) {
+            ByteBuffer preview = readUsableEmbeddedPreview(data);
+
+            if (null != preview) {
+                return preview;
             }
+        }
+
+        return data;
+    }
 
-            createScaledJpeg(massagedJpegFile, outputStream);
+    /**
+     * <p>Returns the preview embedded in the JPEG data if it is large enough
+     * to make the thumbnail from and if it has the same aspect ratio as the
+     * main image; otherwise NULL.  A preview with a different aspect ratio
+     * has probably been padded or cropped.</p>
+     */
 
-        } finally {
-            if (null != massagedJpegFile) {
-                if (!massagedJpegFile.delete()) {
-                    LOGGER.warn("unable to delete the intermediate jpeg file; {}", massagedJpegFile);
-                }
+    private ByteBuffer readUsableEmbeddedPreview(ByteBuffer data) {
+        try {
+            ByteBuffer preview = ExifHelper.readEmbeddedPreview(data);
+
+            if (null == preview) {
+                return null;
+            }
+
+            JpegHelper.Frame frame = JpegHelper.readFrame(data);
+            JpegHelper.Frame previewFrame = JpegHelper.readFrame(preview);
+
+            if (Math.max(previewFrame.getWidth(), previewFrame.getHeight())
+                    < getLargestThumbnailSize()) {
+                return null;
+            }
+
+            if (!hasSameAspectRatio(frame, previewFrame)) {
+                LOGGER.debug("the embedded preview has a different aspect ratio to the image; {}", jobSourceFile.getName());
+                return null;
             }
+
+            LOGGER.info("will use the embedded preview for; {}", jobSourceFile.getName());
+            return preview;
+        } catch (IOException ioe) {
+            LOGGER.debug("unable to use the embedded preview; will decode the image; {}", jobSourceFile.getName(), ioe);
+            return null;
         }
     }
 
-    public void run() {
-        FileOutputStream fos = null;
+    /**
+     * <p>The aspect ratios are the same if the height of the preview is
+     * within a pixel of the height the preview would have if it were the
+     * main image scaled down to the width of the preview.</p>
+     */
+
+    private static boolean hasSameAspectRatio(JpegHelper.Frame frame, JpegHelper.Frame previewFrame) {
+        if (0 == frame.getWidth() || 0 == frame.getHeight() || 0 == previewFrame.getWidth() || 0 == previewFrame.getHeight()) {
+            return false;
+        }
+
+        long difference = (long) previewFrame.getWidth() * frame.getHeight() - (long) previewFrame.getHeight() * frame.getWidth();
+        return Math.abs(difference) <= frame.getWidth();
+    }
 
+    public void run() {
         try {
-            jobSourceFile.setThumbnailFile(File.createTempFile(jobSourceFile.getCode() + "-THUMB", ".JPG"));
-            fos = new FileOutputStream(jobSourceFile.getThumbnailFile());
-            createThumbnail(fos);
-        } catch (Exception e) {
-            jobSourceFile.setThumbnailFile(null);
-            LOGGER.error("unable to convert the file; {}",jobSourceFile.getName(), e);
-        } finally {
-            Closeables.closeQuietly(fos);
+            ByteBuffer data = read(jsf -> true);
+
+            if (null != data) {
+                encode(scale(decode(data)));
+            }
+        } catch (Throwable th) {
+            fail(th);
         }
     }
 
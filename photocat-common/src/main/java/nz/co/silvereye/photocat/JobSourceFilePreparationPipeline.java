@@ -0,0 +1,295 @@
+/*
+ * Copyright 2016-2023, Andrew Lindesay. All Rights Reserved.
+ * Distributed under the terms of the MIT License.
+ *
+ * Authors:
+ *		Andrew Lindesay, apl@lindesay.co.nz
+ */
+
+package nz.co.silvereye.photocat;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+/**
+ * <p>This class runs the stages of {@link JobSourceFilePreparation}s with a
+ * pool of threads for each stage.  The read stage mostly waits on storage
+ * and so has more threads than there are processors while the other stages
+ * mostly use the CPU and have as many threads as the job's thread count.
+ * </p>
+ *
+ * <p>The stages hand over to each other through bounded queues.  If a stage
+ * is not able to keep up then its queue fills and the stage before it is
+ * held back; this stops decoded images, which are large, piling up in
+ * memory.  The depth of each queue can be obtained in order to see which
+ * stage is the bottleneck.</p>
+ *
+ * <p>Preparations waiting to be read are started in order of their
+ * estimated cost; the most expensive power-of-two cost bucket first and
+ * then in the order that they were submitted.</p>
+ */
+
+public class JobSourceFilePreparationPipeline {
+
+    public enum Stage {
+        READ,
+        DECODE,
+        SCALE,
+        ENCODE
+    }
+
+    private final Map<Stage, ThreadPoolExecutor> executors = new EnumMap<>(Stage.class);
+
+    private final Map<Stage, AtomicInteger> maximumQueueDepths = new EnumMap<>(Stage.class);
+
+    private final AtomicLong sequence = new AtomicLong(0);
+
+    private final Predicate<JobSourceFile> proceedAfterHashing;
+
+    /**
+     * <p>Once the read stage has hashed the content of a file, the file is
+     * only decoded and so on if the predicate allows it.  This allows a file
+     * with identical content to a file that has already been prepared to be
+     * skipped.</p>
+     */
+
+    public JobSourceFilePreparationPipeline(AbstractJob job, Predicate<JobSourceFile> proceedAfterHashing) {
+        Preconditions.checkArgument(null!=job, "the job must be provided");
+        Preconditions.checkArgument(null!=proceedAfterHashing, "the predicate must be provided");
+
+        this.proceedAfterHashing = proceedAfterHashing;
+
+        int threadCount = job.getThreadCount();
+
+        executors.put(Stage.READ, new ThreadPoolExecutor(
+                job.getReadThreadCount(), job.getReadThreadCount(),
+                0L, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<>(),
+                createThreadFactory(Stage.READ)));
+
+        executors.put(Stage.DECODE, createBoundedExecutor(Stage.DECODE, threadCount, threadCount * 2));
+
+        // decoded images are the largest so fewer are allowed to wait to be scaled.
+
+        executors.put(Stage.SCALE, createBoundedExecutor(Stage.SCALE, threadCount, threadCount));
+        executors.put(Stage.ENCODE, createBoundedExecutor(Stage.ENCODE, threadCount, threadCount * 2));
+
+        for (Stage stage : Stage.values()) {
+            maximumQueueDepths.put(stage, new AtomicInteger(0));
+        }
+    }
+
+    private static ThreadFactory createThreadFactory(Stage stage) {
+        return new ThreadFactoryBuilder()
+                .setNameFormat("preparation-" + stage.name().toLowerCase() + "-%d")
+                .build();
+    }
+
+    /**
+     * <p>When the queue of the executor is full, the thread handing over
+     * the work waits until there is space.</p>
+     */
+
+    private static ThreadPoolExecutor createBoundedExecutor(Stage stage, int threadCount, int queueCapacity) {
+        return new ThreadPoolExecutor(
+                threadCount, threadCount,
+                0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                createThreadFactory(stage),
+                (runnable, executor) -> {
+                    if (executor.isShutdown()) {
+                        throw new RejectedExecutionException("the " + stage + " stage has been shutdown");
+                    }
+
+                    try {
+                        executor.getQueue().put(runnable);
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        throw new RejectedExecutionException("interrupted waiting to hand over to the " + stage + " stage", ie);
+                    }
+                });
+    }
+
+    /**
+     * <p>Estimated costs are compared by their power of two so that files
+     * of a similar cost stay in the order that they were submitted.</p>
+     */
+
+    public static int costBucket(long cost) {
+        return 64 - Long.numberOfLeadingZeros(Math.max(0, cost));
+    }
+
+    /**
+     * <p>Queues the preparation to be run through the stages.  The future
+     * that is returned is completed once the preparation has finished; if
+     * the preparation fails then it is still completed normally but the job
+     * source file will have no thumbnail.</p>
+     */
+
+    public CompletableFuture<JobSourceFile> submit(JobSourceFilePreparation preparation, long estimatedCost) {
+        Preconditions.checkArgument(null!=preparation, "the preparation must be provided");
+
+        CompletableFuture<JobSourceFile> result = new CompletableFuture<>();
+
+        executors.get(Stage.READ).execute(new ReadTask(
+                preparation, costBucket(estimatedCost), sequence.getAndIncrement(), result));
+        noteQueueDepth(Stage.READ);
+
+        return result;
+    }
+
+    private void handOver(
+            Stage stage,
+            JobSourceFilePreparation preparation,
+            CompletableFuture<JobSourceFile> result,
+            StageWork work) {
+        executors.get(stage).execute(() -> runStage(preparation, result, work));
+        noteQueueDepth(stage);
+    }
+
+    private static void runStage(
+            JobSourceFilePreparation preparation,
+            CompletableFuture<JobSourceFile> result,
+            StageWork work) {
+        try {
+            work.run();
+        } catch (Throwable th) {
+            preparation.fail(th);
+            result.complete(preparation.getJobSourceFile());
+        }
+    }
+
+    private void noteQueueDepth(Stage stage) {
+        maximumQueueDepths.get(stage).accumulateAndGet(getQueueDepth(stage), Math::max);
+    }
+
+    public int getQueueDepth(Stage stage) {
+        return executors.get(stage).getQueue().size();
+    }
+
+    public int getMaximumQueueDepth(Stage stage) {
+        return maximumQueueDepths.get(stage).get();
+    }
+
+    /**
+     * <p>Returns a description of the current depth of each stage's queue
+     * that is suitable for logging.</p>
+     */
+
+    public String describeQueueDepths() {
+        return executors.keySet().stream()
+                .map(s -> s.name().toLowerCase() + "=" + getQueueDepth(s))
+                .collect(Collectors.joining(", "));
+    }
+
+    public String describeMaximumQueueDepths() {
+        return executors.keySet().stream()
+                .map(s -> s.name().toLowerCase() + "=" + getMaximumQueueDepth(s))
+                .collect(Collectors.joining(", "));
+    }
+
+    /**
+     * <p>Stops the stages and waits for them to stop.  If the stages are to
+     * finish then each stage is stopped once the stage before it has
+     * stopped so that the preparations already under way are completed.
+     * Otherwise any preparations that have not been started are abandoned.
+     * Returns false if the stages did not stop in the time allowed in which
+     * case the preparations still under way are interrupted.</p>
+     */
+
+    public boolean shutdown(boolean finish, long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+        if (!finish) {
+            executors.values().forEach(ThreadPoolExecutor::shutdownNow);
+        }
+
+        for (ThreadPoolExecutor executor : executors.values()) {
+            executor.shutdown();
+
+            if (!executor.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                executors.values().forEach(ThreadPoolExecutor::shutdownNow);
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    @FunctionalInterface
+    private interface StageWork {
+        void run() throws Exception;
+    }
+
+    /**
+     * <p>This is the read stage of a preparation which, once it has read
+     * the data, hands over to the later stages.</p>
+     */
+
+    private class ReadTask implements Runnable, Comparable<ReadTask> {
+
+        private final JobSourceFilePreparation preparation;
+
+        private final int costBucket;
+
+        private final long sequence;
+
+        private final CompletableFuture<JobSourceFile> result;
+
+        ReadTask(
+                JobSourceFilePreparation preparation,
+                int costBucket,
+                long sequence,
+                CompletableFuture<JobSourceFile> result) {
+            this.preparation = preparation;
+            this.costBucket = costBucket;
+            this.sequence = sequence;
+            this.result = result;
+        }
+
+        @Override
+        public void run() {
+            runStage(preparation, result, () -> {
+                ByteBuffer data = preparation.read(proceedAfterHashing);
+
+                if (null == data) {
+                    result.complete(preparation.getJobSourceFile());
+                    return;
+                }
+
+                handOver(Stage.DECODE, preparation, result, () -> {
+                    BufferedImage bi = preparation.decode(data);
+
+                    handOver(Stage.SCALE, preparation, result, () -> {
+                        List<BufferedImage> scaledBis = preparation.scale(bi);
+
+                        handOver(Stage.ENCODE, preparation, result, () -> {
+                            preparation.encode(scaledBis);
+                            result.complete(preparation.getJobSourceFile());
+                        });
+                    });
+                });
+            });
+        }
+
+        @Override
+        public int compareTo(ReadTask o) {
+            int result = Integer.compare(o.costBucket, costBucket);
+            if (0 != result) return result;
+            return Long.compare(sequence, o.sequence);
+        }
+
+    }
+
+}
@@ -12,9 +12,11 @@ import com.google.common.base.Preconditions;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.imageio.stream.ImageInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
 
 /**
  * <p>This class provides helpers for working with JPEG images.</p>
@@ -26,161 +28,292 @@ public class JpegHelper {
 
     protected static Logger LOGGER = LoggerFactory.getLogger(JpegHelper.class);
 
-    // convert from moto endian to intel endian
+    /**
+     * <p>Only a limited number of segments are tolerated before the frame
+     * header before giving up.</p>
+     */
+
+    private static final int MAXIMUM_SEGMENTS_BEFORE_FRAME = 64;
 
-    private static int read16(InputStream is) throws IOException {
-        int a = is.read();
-        if (-1 == a) return -1;
-        int b = is.read();
-        if (-1 == b) throw new IOException("unexpected end of file when reading a 16 bit number.");
-        return (a << 8) | b;
+    private static boolean isNecessarySegment(int segmentMarker) {
+        return switch (segmentMarker) {
+            case 0xFFE0, 0xFFE1, 0xFFE2, 0xFFE3, 0xFFE4, 0xFFE5, 0xFFE6, 0xFFE7, 0xFFE8, 0xFFE9 -> false;
+            default -> true;
+        };
     }
 
-    private static void write16(int value, OutputStream os) throws IOException {
-        int a = (value >> 8) & 0xFF;
-        int b = value & 0xFF;
-        os.write(a);
-        os.write(b);
+    private static int read16(ByteBuffer data, int position) throws IOException {
+        if (position + 2 > data.limit()) {
+            throw new IOException("unexpected end of file when reading a 16 bit number.");
+        }
+
+        return data.getShort(position) & 0xFFFF;
     }
 
     /**
-     * <p>Returns true if it has reached the end of the JPEG data.</p>
+     * <p>Returns the offset just past the entropy coded data that starts at
+     * the offset supplied.  This is the offset of the marker that follows the
+     * data.  The entropy coded data has to be quasi parsed because it has no
+     * length; a 0xFF in the data is followed by a zero byte or by a restart
+     * marker.</p>
      */
 
-    private static boolean passThroughJpegImageSegmentWithUnnecessarySegmentsStripped(
-            int segmentMarker,
-            InputStream is,
-            OutputStream os,
-            byte[] passThroughBuffer) throws IOException {
+    private static int skipEntropyCodedData(ByteBuffer data, int position) throws IOException {
+        int limit = data.limit();
 
-        Preconditions.checkNotNull(os);
-        Preconditions.checkNotNull(is);
+        while (position < limit) {
+            if (0xFF == (data.get(position) & 0xFF)) {
+                if (position + 1 >= limit) {
+                    break;
+                }
 
-        if ((segmentMarker & 0xFF00) != 0xFF00)
-            throw new IOException("bad segment marker; all segment markers should start with 0xFF");
+                int c = data.get(position + 1) & 0xFF;
 
-        boolean writeSegment = switch (segmentMarker) {
-            case 0xFFE0, 0xFFE1, 0xFFE2, 0xFFE3, 0xFFE4, 0xFFE5, 0xFFE6, 0xFFE7, 0xFFE8, 0xFFE9 -> false;
-            default -> true;
-        };
+                // a further 0xFF is a fill byte in front of the marker.
 
-        if (writeSegment) {
-            write16(segmentMarker, os);
-        }
+                if (0xFF != c && 0x00 != c && (c < 0xD0 || c > 0xD7)) {
+                    return position;
+                }
+
+                if (0xFF != c) {
+                    position++;
+                }
+            }
 
-        if (0xFFD9 == segmentMarker) /* EOI - End of Image */ {
-            return true;
+            position++;
         }
 
-        int len = read16(is);
+        throw new IOException("premature end of data when reading a JPEG SOS segment.");
+    }
+
+    /**
+     * <p>Basically this method will interpret the data as JPEG and will find
+     * those segments which are actually really necessary for the JPEG image.
+     * This means no EXIF data.  This is used because the EXIF data seems to
+     * be able to stop the JPEG image from loading in the J2SE environment.
+     * The necessary data is returned as pairs of start (inclusive) and end
+     * (exclusive) offsets into the data so that it can be read without being
+     * copied; see {@link #createStrippedImageInputStream(ByteBuffer)}.</p>
+     */
+
+    public static int[] findNecessaryRanges(ByteBuffer data) throws IOException {
+        Preconditions.checkArgument(null!=data, "the jpeg data must be provided");
 
-        if (writeSegment) {
-            write16(len, os);
+        if (data.limit() < 2 || 0xFFD8 != read16(data, 0)) {
+            throw new IOException("missing SOI marker");
         }
 
-        if (0xFFDA != segmentMarker) {
-            // transcribe the data over into the output.
-            // was using InputStream.skip(..) here for the
-            // case of not writing, but this seemed to cause
-            // some problems with the buffered input stream.
+        RangeList ranges = new RangeList();
+        int position = 2;
 
-            int yetToRead = len - 2;
+        ranges.add(0, position);
 
-            while (yetToRead > 0) {
-                int toRead = yetToRead;
-                if (toRead > passThroughBuffer.length) toRead = passThroughBuffer.length;
-                int wasRead = is.read(passThroughBuffer, 0, toRead);
+        // if we reach the end, some images may be padded so bail early.
 
-                if (-1 == wasRead)
-                    throw new IOException("unexpected end of stream reached while reading JPEG data from segment; " + Integer.toString(segmentMarker, 16));
+        while (position < data.limit()) {
+            int segmentMarker = read16(data, position);
 
-                if (writeSegment) {
-                    os.write(passThroughBuffer, 0, wasRead);
-                }
+            if ((segmentMarker & 0xFF00) != 0xFF00) {
+                throw new IOException("bad segment marker; all segment markers should start with 0xFF");
+            }
 
-                yetToRead -= wasRead;
+            if (LOGGER.isTraceEnabled()) {
+                LOGGER.trace("processing segment marker; {}", Integer.toString(segmentMarker, 16));
             }
-        } else {
-            boolean exhaustedSosSegment = false;
 
-            // the SOS marker indicates actual data and the only way
-            // to cope with it is to quasi parse it.
+            if (0xFFD9 == segmentMarker) /* EOI - End of Image */ {
+                ranges.add(position, position + 2);
+                break;
+            }
 
-            while (!exhaustedSosSegment) {
-                int c = is.read();
+            int segmentEnd = position + 2 + read16(data, position + 2);
 
-                if (-1 == c) {
-                    throw new IOException("premature end of stream when reading a JPEG SOS segment.");
-                }
+            if (segmentEnd > data.limit()) {
+                throw new IOException("unexpected end of data reached while reading JPEG data from segment; "
+                        + Integer.toString(segmentMarker, 16));
+            }
 
-                os.write(c);
+            if (0xFFDA == segmentMarker) {
+                segmentEnd = skipEntropyCodedData(data, segmentEnd);
+            }
 
-                if (0xFF == c) {
-                    c = is.read();
+            if (isNecessarySegment(segmentMarker)) {
+                ranges.add(position, segmentEnd);
+            }
 
-                    if (-1 == c) {
-                        throw new IOException("premature end of stream when reading a JPEG SOS segment.");
-                    }
+            position = segmentEnd;
+        }
 
-                    os.write(c);
+        return ranges.toArray();
+    }
 
-                    if (0x00 != c) {
-                        if ((c < 0xD0) || (c > 0xD7)) {
-                            exhaustedSosSegment = true;
-                            int nextSegmentMarker = (0xFF << 8) | c;
+    /**
+     * <p>Returns an image input stream over the JPEG data which presents only
+     * those segments that are necessary for the JPEG image.  The data is not
+     * copied.</p>
+     */
 
-                            if(LOGGER.isTraceEnabled()) {
-                                LOGGER.trace("processing next segment marker; {}", Integer.toString(nextSegmentMarker, 16));
-                            }
+    public static ImageInputStream createStrippedImageInputStream(ByteBuffer data) throws IOException {
+        return new ByteBufferImageInputStream(data, findNecessaryRanges(data));
+    }
 
-                            if(passThroughJpegImageSegmentWithUnnecessarySegmentsStripped(nextSegmentMarker, is, os, passThroughBuffer)) {
-                                return true;
-                            }
-                        }
-                    }
-                }
-            }
-        }
+    private static boolean isStartOfFrame(int segmentMarker) {
+        return segmentMarker >= 0xFFC0 && segmentMarker <= 0xFFCF
+                && segmentMarker != 0xFFC4 // DHT
+                && segmentMarker != 0xFFC8 // JPG
+                && segmentMarker != 0xFFCC; // DAC
+    }
 
-        return false;
+    private static boolean isProgressive(int segmentMarker) {
+        return switch (segmentMarker) {
+            case 0xFFC2, 0xFFC6, 0xFFCA, 0xFFCE -> true;
+            default -> false;
+        };
     }
 
     /**
-     * <p>Basically this method will take the data on the input stream, interpret
-     * it as JPEG and just keep those segments which are actually really necessary
-     * for the JPEG image.  This means no EXIF data.  This is used because the
-     * EXIF data seems to be able to stop the JPEG image from loading in the J2SE
-     * environment.</p>
+     * <p>Reads the frame header of the JPEG file open on the channel
+     * without reading any of the image data.  Only the segment headers up
+     * to the frame header are read.</p>
      */
 
-    static void passThroughJpegImageWithUnnecessarySegmentsStripped(
-            InputStream inputStream,
-            OutputStream outputStream) throws IOException {
+    public static Frame readFrame(FileChannel channel) throws IOException {
+        Preconditions.checkArgument(null!=channel, "the channel must be provided");
+        return readFrame(PositionalReader.of(channel));
+    }
+
+    /**
+     * <p>Reads the frame header of JPEG data that is already in memory.</p>
+     */
 
-        Preconditions.checkArgument(null!=inputStream, "the jpeg input stream must be provided");
-        Preconditions.checkArgument(null!=outputStream, "the jpeg output stream must be provided");
+    public static Frame readFrame(ByteBuffer jpegData) throws IOException {
+        Preconditions.checkArgument(null!=jpegData, "the jpeg data must be provided");
+        return readFrame(PositionalReader.of(jpegData));
+    }
 
-        byte[] passThroughBuffer = new byte[32 * 1024];
+    private static Frame readFrame(PositionalReader reader) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(10);
+        long position = 0;
 
-        if (0xFFD8 != read16(inputStream)) {
+        if (2 != reader.read(buffer.limit(2), position) || 0xFFD8 != (buffer.getShort(0) & 0xFFFF)) {
             throw new IOException("missing SOI marker");
         }
 
-//		System.out.println("segment; "+Integer.toString(0xFFD8,16));
+        position += 2;
 
-        write16(0xFFD8, outputStream);
+        for (int i = 0; i < MAXIMUM_SEGMENTS_BEFORE_FRAME; i++) {
+            buffer.clear();
 
-        int segmentMarker;
+            if (10 != reader.read(buffer, position)) {
+                throw new IOException("unexpected end of file when reading a segment header");
+            }
 
-        while (-1 != (segmentMarker = read16(inputStream))) {
-            if(LOGGER.isTraceEnabled()) {
-                LOGGER.trace("processing segment marker; {}", Integer.toString(segmentMarker, 16));
+            int segmentMarker = buffer.getShort(0) & 0xFFFF;
+
+            if ((segmentMarker & 0xFF00) != 0xFF00) {
+                throw new IOException("bad segment marker; all segment markers should start with 0xFF");
+            }
+
+            if (isStartOfFrame(segmentMarker)) {
+                return new Frame(
+                        buffer.getShort(7) & 0xFFFF,
+                        buffer.getShort(5) & 0xFFFF,
+                        buffer.get(9) & 0xFF,
+                        isProgressive(segmentMarker));
+            }
+
+            if (0xFFDA == segmentMarker || 0xFFD9 == segmentMarker) {
+                throw new IOException("the image data starts before the frame header");
+            }
+
+            int length = buffer.getShort(2) & 0xFFFF;
+
+            if (length < 2) {
+                throw new IOException("bad segment length");
+            }
+
+            position += 2 + length;
+        }
+
+        throw new IOException("too many segments before the frame header");
+    }
+
+    /**
+     * <p>Collects ranges, joining a range onto the previous one where they
+     * are adjacent.</p>
+     */
+
+    private static class RangeList {
+
+        private int[] ranges = new int[16];
+
+        private int size = 0;
+
+        void add(int start, int end) {
+            if (start == end) {
+                return;
+            }
+
+            if (0 != size && ranges[size - 1] == start) {
+                ranges[size - 1] = end;
+                return;
             }
 
-            if(passThroughJpegImageSegmentWithUnnecessarySegmentsStripped(segmentMarker, inputStream, outputStream, passThroughBuffer)) {
-                return; // if we reached the end, some images may be padded so bail early.
+            if (size + 2 > ranges.length) {
+                ranges = Arrays.copyOf(ranges, ranges.length * 2);
             }
+
+            ranges[size++] = start;
+            ranges[size++] = end;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(ranges, size);
+        }
+
+    }
+
+    /**
+     * <p>This is the information from the frame header of a JPEG image.</p>
+     */
+
+    public static class Frame {
+
+        private final int width;
+
+        private final int height;
+
+        private final int componentCount;
+
+        private final boolean progressive;
+
+        public Frame(int width, int height, int componentCount, boolean progressive) {
+            this.width = width;
+            this.height = height;
+            this.componentCount = componentCount;
+            this.progressive = progressive;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        public int getComponentCount() {
+            return componentCount;
+        }
+
+        public boolean isProgressive() {
+            return progressive;
         }
+
+        public long getPixelCount() {
+            return (long) width * height;
+        }
+
     }
 
 }
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2016-2023, Andrew Lindesay. All Rights Reserved.
+ * Distributed under the terms of the MIT License.
+ *
+ * Authors:
+ *		Andrew Lindesay, apl@lindesay.co.nz
+ */
+
+package nz.co.silvereye.photocat;
+
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * <p>This class limits the memory that work running at the same time may
+ * use.  Before the work starts, a reservation is made for the memory that
+ * the work is expected to use and the work waits until there is enough
+ * memory left in the budget.  Small pieces of work are able to run at the
+ * same time while very large pieces of work run one after the other.  A
+ * reservation that is larger than the whole budget is reduced to the whole
+ * budget so that it runs on its own rather than never running.</p>
+ *
+ * <p>Reservations are granted in the order in which they were asked for so
+ * that a large reservation is not held back forever by smaller ones.  The
+ * budget is kept as a semaphore with a permit for each kilobyte.</p>
+ */
+
+public class MemoryBudget {
+
+    private static final long BYTES_PER_PERMIT = 1024;
+
+    private final Semaphore semaphore;
+
+    private final int permits;
+
+    public MemoryBudget(long bytes) {
+        Preconditions.checkArgument(bytes > 0, "the budget must be positive");
+        this.permits = (int) Math.max(1, Math.min(Integer.MAX_VALUE, bytes / BYTES_PER_PERMIT));
+        this.semaphore = new Semaphore(permits, true);
+    }
+
+    public long getBytes() {
+        return permits * BYTES_PER_PERMIT;
+    }
+
+    public long getAvailableBytes() {
+        return semaphore.availablePermits() * BYTES_PER_PERMIT;
+    }
+
+    private int toPermits(long bytes) {
+        return (int) Math.max(1, Math.min(permits, (bytes + BYTES_PER_PERMIT - 1) / BYTES_PER_PERMIT));
+    }
+
+    /**
+     * <p>Returns a reservation if the memory is available straight away
+     * and otherwise NULL.</p>
+     */
+
+    public Reservation tryReserve(long bytes) {
+        Preconditions.checkArgument(bytes >= 0, "the bytes must not be negative");
+        int reservationPermits = toPermits(bytes);
+        return semaphore.tryAcquire(reservationPermits) ? new Reservation(reservationPermits) : null;
+    }
+
+    /**
+     * <p>Waits until the memory is available and then returns the
+     * reservation.</p>
+     */
+
+    public Reservation reserve(long bytes) throws InterruptedException {
+        Preconditions.checkArgument(bytes >= 0, "the bytes must not be negative");
+        int reservationPermits = toPermits(bytes);
+        semaphore.acquire(reservationPermits);
+        return new Reservation(reservationPermits);
+    }
+
+    /**
+     * <p>This is memory reserved from the budget.  It is handed back when it
+     * is released; releasing it again has no effect.  It may be released by
+     * a different thread from the one that reserved it.</p>
+     */
+
+    public final class Reservation {
+
+        private final int reservationPermits;
+
+        private final AtomicBoolean released = new AtomicBoolean(false);
+
+        private Reservation(int reservationPermits) {
+            this.reservationPermits = reservationPermits;
+        }
+
+        public long getBytes() {
+            return reservationPermits * BYTES_PER_PERMIT;
+        }
+
+        public void release() {
+            if (released.compareAndSet(false, true)) {
+                semaphore.release(reservationPermits);
+            }
+        }
+
+    }
+
+}
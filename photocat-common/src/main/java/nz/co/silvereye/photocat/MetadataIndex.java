@@ -0,0 +1,328 @@
+/*
+ * Copyright 2016-2023, Andrew Lindesay. All Rights Reserved.
+ * Distributed under the terms of the MIT License.
+ *
+ * Authors:
+ *		Andrew Lindesay, apl@lindesay.co.nz
+ */
+
+package nz.co.silvereye.photocat;
+
+import com.google.common.base.Preconditions;
+import nz.co.silvereye.photocat.JobHelper.DataType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>This is an index of the meta-data that has previously been read
+ * from source files.  It is stored on disk between runs so that files
+ * which have not changed since the last run do not need to be opened
+ * in order to obtain their meta-data.  An entry is only used when the
+ * size and the modification time of the file still match.</p>
+ *
+ * <p>The index is written to a temporary file beside the index file
+ * and is then moved over the index file so that other processes that
+ * are reading the index will see either the old or the new index but
+ * never a partially written one.</p>
+ *
+ * <p>On disk, the entries are grouped by directory so that the
+ * directory path is only stored once for all of the files in it.</p>
+ *
+ * <p>If the content of a file was hashed then the hash is kept in the
+ * index as well.</p>
+ *
+ * <p>Strings are stored as a length followed by UTF-8 bytes rather than
+ * with {@link DataOutputStream#writeUTF(String)} which is not able to
+ * store strings of more than 65535 encoded bytes; a long Exif
+ * description may be larger than this.</p>
+ */
+
+public class MetadataIndex {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MetadataIndex.class);
+
+    private static final int MAGIC = 0x50434D49; // PCMI
+    private static final int VERSION = 3;
+
+    private static final long NO_TIMESTAMP = Long.MIN_VALUE;
+
+    private final File indexFile;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * <p>These are the paths of the files that have been looked up or added
+     * since the index was loaded.</p>
+     */
+
+    private final Set<String> visitedPaths = ConcurrentHashMap.newKeySet();
+
+    private volatile boolean modified = false;
+
+    private MetadataIndex(File indexFile) {
+        this.indexFile = indexFile;
+    }
+
+    /**
+     * <p>Loads the index from the file supplied.  If the file does not
+     * exist or is not able to be read then an empty index is returned.</p>
+     */
+
+    public static MetadataIndex load(File indexFile) {
+        Preconditions.checkArgument(null!=indexFile, "the index file must be provided");
+
+        MetadataIndex result = new MetadataIndex(indexFile);
+
+        if (indexFile.exists()) {
+            try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile), 64 * 1024))) {
+                result.read(dis);
+                LOGGER.info("loaded {} entries from the meta-data index; {}", result.entries.size(), indexFile);
+            } catch (IOException ioe) {
+                LOGGER.warn("unable to read the meta-data index; will start a new one; {}", indexFile, ioe);
+                result.entries.clear();
+            }
+        }
+
+        return result;
+    }
+
+    private void read(DataInputStream dis) throws IOException {
+        if (MAGIC != dis.readInt()) {
+            throw new IOException("the file is not a meta-data index");
+        }
+
+        if (VERSION != dis.readInt()) {
+            throw new IOException("the meta-data index is of an unsupported version");
+        }
+
+        DataType[] dataTypes = DataType.values();
+        int directoryCount = dis.readInt();
+
+        for (int d = 0; d < directoryCount; d++) {
+            String directory = readString(dis);
+            int fileCount = dis.readInt();
+
+            for (int f = 0; f < fileCount; f++) {
+                String name = readString(dis);
+                long size = dis.readLong();
+                long modifiedMillis = dis.readLong();
+                int dataTypeOrdinal = dis.readUnsignedByte();
+                long timestampMillis = dis.readLong();
+                String description = dis.readBoolean() ? readString(dis) : null;
+                String contentHash = dis.readBoolean() ? readString(dis) : null;
+
+                if (dataTypeOrdinal >= dataTypes.length) {
+                    throw new IOException("unknown data type in the meta-data index");
+                }
+
+                entries.put(
+                        new File(directory, name).getPath(),
+                        new Entry(
+                                size,
+                                modifiedMillis,
+                                dataTypes[dataTypeOrdinal],
+                                NO_TIMESTAMP == timestampMillis ? null : new java.util.Date(timestampMillis),
+                                description,
+                                contentHash));
+            }
+        }
+    }
+
+    private static String readString(DataInputStream dis) throws IOException {
+        int length = dis.readInt();
+
+        if (length < 0) {
+            throw new IOException("bad string length in the meta-data index");
+        }
+
+        byte[] bytes = dis.readNBytes(length);
+
+        if (bytes.length != length) {
+            throw new EOFException("the meta-data index ended within a string");
+        }
+
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeString(DataOutputStream dos, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        dos.writeInt(bytes.length);
+        dos.write(bytes);
+    }
+
+    /**
+     * <p>Returns the entry for the file or NULL if there is no entry or the
+     * file has changed since the entry was made.</p>
+     */
+
+    public Entry lookup(File file, long size, long modifiedMillis) {
+        String path = file.getAbsolutePath();
+        visitedPaths.add(path);
+        Entry entry = entries.get(path);
+
+        if (null != entry && entry.getSize() == size && entry.getModifiedMillis() == modifiedMillis) {
+            return entry;
+        }
+
+        return null;
+    }
+
+    public void put(File file, Entry entry) {
+        Preconditions.checkArgument(null!=file, "the file must be provided");
+        Preconditions.checkArgument(null!=entry, "the entry must be provided");
+        String path = file.getAbsolutePath();
+        visitedPaths.add(path);
+        entries.put(path, entry);
+        modified = true;
+    }
+
+    /**
+     * <p>Any entries for files within the directory supplied that have not
+     * been looked up or added since the index was loaded are for files
+     * that no longer exist and are removed.</p>
+     */
+
+    public void pruneUnvisited(File directory) {
+        Preconditions.checkArgument(null!=directory, "the directory must be provided");
+        String prefix = directory.getAbsolutePath() + File.separator;
+
+        if (entries.keySet().removeIf(p -> p.startsWith(prefix) && !visitedPaths.contains(p))) {
+            modified = true;
+        }
+    }
+
+    /**
+     * <p>Writes the index back to its file if it has been modified.</p>
+     */
+
+    public void save() throws IOException {
+        if (!modified) {
+            return;
+        }
+
+        Map<String, Map<String, Entry>> entriesByDirectory = new TreeMap<>();
+
+        for (Map.Entry<String, Entry> mapEntry : entries.entrySet()) {
+            File file = new File(mapEntry.getKey());
+            entriesByDirectory
+                    .computeIfAbsent(Objects.toString(file.getParent(), ""), k -> new TreeMap<>())
+                    .put(file.getName(), mapEntry.getValue());
+        }
+
+        Path indexPath = indexFile.getAbsoluteFile().toPath();
+        Path temporaryPath = Files.createTempFile(indexPath.getParent(), indexPath.getFileName().toString(), ".tmp");
+
+        try {
+            try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporaryPath), 64 * 1024))) {
+                dos.writeInt(MAGIC);
+                dos.writeInt(VERSION);
+                dos.writeInt(entriesByDirectory.size());
+
+                for (Map.Entry<String, Map<String, Entry>> directoryEntry : entriesByDirectory.entrySet()) {
+                    writeString(dos, directoryEntry.getKey());
+                    dos.writeInt(directoryEntry.getValue().size());
+
+                    for (Map.Entry<String, Entry> fileEntry : directoryEntry.getValue().entrySet()) {
+                        Entry entry = fileEntry.getValue();
+                        writeString(dos, fileEntry.getKey());
+                        dos.writeLong(entry.getSize());
+                        dos.writeLong(entry.getModifiedMillis());
+                        dos.writeByte(entry.getDataType().ordinal());
+                        dos.writeLong(null == entry.getTimestamp() ? NO_TIMESTAMP : entry.getTimestamp().getTime());
+                        dos.writeBoolean(null != entry.getDescription());
+
+                        if (null != entry.getDescription()) {
+                            writeString(dos, entry.getDescription());
+                        }
+
+                        dos.writeBoolean(null != entry.getContentHash());
+
+                        if (null != entry.getContentHash()) {
+                            writeString(dos, entry.getContentHash());
+                        }
+                    }
+                }
+            }
+
+            Files.move(temporaryPath, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            modified = false;
+            LOGGER.info("saved {} entries to the meta-data index; {}", entries.size(), indexFile);
+        } finally {
+            Files.deleteIfExists(temporaryPath);
+        }
+    }
+
+    /**
+     * <p>This is the meta-data for one file together with the size and the
+     * modification time of the file when the meta-data was read.</p>
+     */
+
+    public static class Entry {
+
+        private final long size;
+
+        private final long modifiedMillis;
+
+        private final DataType dataType;
+
+        private final java.util.Date timestamp;
+
+        private final String description;
+
+        /**
+         * <p>This is NULL if the content of the file was not hashed.</p>
+         */
+
+        private final String contentHash;
+
+        public Entry(
+                long size,
+                long modifiedMillis,
+                DataType dataType,
+                java.util.Date timestamp,
+                String description,
+                String contentHash) {
+            Preconditions.checkArgument(null!=dataType, "the data type must be provided");
+            this.size = size;
+            this.modifiedMillis = modifiedMillis;
+            this.dataType = dataType;
+            this.timestamp = timestamp;
+            this.description = description;
+            this.contentHash = contentHash;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getModifiedMillis() {
+            return modifiedMillis;
+        }
+
+        public DataType getDataType() {
+            return dataType;
+        }
+
+        public java.util.Date getTimestamp() {
+            return timestamp;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+
+        public String getContentHash() {
+            return contentHash;
+        }
+
+    }
+
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2016-2023, Andrew Lindesay. All Rights Reserved.
+ * Distributed under the terms of the MIT License.
+ *
+ * Authors:
+ *		Andrew Lindesay, apl@lindesay.co.nz
+ */
+
+package nz.co.silvereye.photocat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * <p>Reads into the buffer from the position in some JPEG data until the
+ * buffer is full or the data ends; the quantity of bytes read is
+ * returned.  This allows the headers of JPEG data to be read in the same
+ * way from a file or from data that is already in memory.</p>
+ */
+
+@FunctionalInterface
+interface PositionalReader {
+
+    int read(ByteBuffer buffer, long position) throws IOException;
+
+    static PositionalReader of(FileChannel channel) {
+        return (buffer, position) -> {
+            int total = 0;
+
+            while (buffer.hasRemaining()) {
+                int read = channel.read(buffer, position + total);
+
+                if (-1 == read) {
+                    break;
+                }
+
+                total += read;
+            }
+
+            return total;
+        };
+    }
+
+    static PositionalReader of(ByteBuffer source) {
+        return (buffer, position) -> {
+            if (position >= source.limit()) {
+                return 0;
+            }
+
+            int length = (int) Math.min(buffer.remaining(), source.limit() - position);
+            buffer.put(buffer.position(), source, (int) position, length);
+            buffer.position(buffer.position() + length);
+            return length;
+        };
+    }
+
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2016-2023, Andrew Lindesay. All Rights Reserved.
+ * Distributed under the terms of the MIT License.
+ *
+ * Authors:
+ *		Andrew Lindesay, apl@lindesay.co.nz
+ */
+
+package nz.co.silvereye.photocat;
+
+import com.google.common.base.Preconditions;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.util.*;
+
+/**
+ * <p>This is the order in which the source files of a job are handed
+ * over to be processed.  It has no bearing on the order in which the
+ * files appear in the output which is always chronological.</p>
+ */
+
+public enum ProcessingOrder {
+
+    /**
+     * <p>The files are grouped by directory and, within a directory, are
+     * in the order of their inode numbers where the file system has them
+     * or otherwise by name.  Files that are near each other on the disk
+     * then tend to be read one after the other which suits the read-ahead
+     * of the operating system, especially on spinning disks and network
+     * storage.</p>
+     */
+
+    LOCALITY,
+
+    /**
+     * <p>The files are in the order of the time at which they were
+     * taken.</p>
+     */
+
+    CHRONOLOGICAL;
+
+    private static final boolean UNIX_ATTRIBUTES_SUPPORTED =
+            FileSystems.getDefault().supportedFileAttributeViews().contains("unix");
+
+    /**
+     * <p>Returns a new list of the files in this order.</p>
+     */
+
+    public List<JobSourceFile> sort(Collection<JobSourceFile> jobSourceFiles) {
+        Preconditions.checkArgument(null!=jobSourceFiles, "the job source files must be provided");
+
+        return switch (this) {
+            case LOCALITY -> sortByLocality(jobSourceFiles);
+            case CHRONOLOGICAL -> {
+                List<JobSourceFile> result = new ArrayList<>(jobSourceFiles);
+                Collections.sort(result);
+                yield result;
+            }
+        };
+    }
+
+    private static List<JobSourceFile> sortByLocality(Collection<JobSourceFile> jobSourceFiles) {
+        List<LocalityKey> keys = new ArrayList<>(jobSourceFiles.size());
+
+        for (JobSourceFile jsf : jobSourceFiles) {
+            File file = jsf.getFile();
+            keys.add(new LocalityKey(
+                    Objects.toString(file.getParent(), ""),
+                    readInode(file),
+                    file.getName(),
+                    jsf));
+        }
+
+        keys.sort(Comparator
+                .comparing(LocalityKey::directory)
+                .thenComparingLong(LocalityKey::inode)
+                .thenComparing(LocalityKey::name));
+
+        List<JobSourceFile> result = new ArrayList<>(keys.size());
+
+        for (LocalityKey key : keys) {
+            result.add(key.jobSourceFile());
+        }
+
+        return result;
+    }
+
+    /**
+     * <p>Returns the inode number of the file or zero if it is not
+     * available in which case the name decides the order.</p>
+     */
+
+    private static long readInode(File file) {
+        if (UNIX_ATTRIBUTES_SUPPORTED) {
+            try {
+                return ((Number) Files.getAttribute(file.toPath(), "unix:ino")).longValue();
+            } catch (IOException | UnsupportedOperationException | IllegalArgumentException e) {
+                // fall back to the name
+            }
+        }
+
+        return 0;
+    }
+
+    private record LocalityKey(String directory, long inode, String name, JobSourceFile jobSourceFile) {
+    }
+
+}
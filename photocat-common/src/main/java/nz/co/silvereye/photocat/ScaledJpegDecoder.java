@@ -0,0 +1,859 @@
+/*
+ * Copyright 2016-2023, Andrew Lindesay. All Rights Reserved.
+ * Distributed under the terms of the MIT License.
+ *
+ * Authors:
+ *		Andrew Lindesay, apl@lindesay.co.nz
+ */
+
+package nz.co.silvereye.photocat;
+
+import com.google.common.base.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * <p>This class decodes a baseline JPEG image at a half, a quarter or an
+ * eighth of its size.  Each 8x8 block of DCT coefficients is transformed
+ * straight into a 4x4, 2x2 or 1x1 block of pixels using only the lower
+ * frequency coefficients, as libjpeg does, so the image is never held at
+ * its full size.  This is much quicker than decoding the whole image when
+ * only a thumbnail is needed.</p>
+ *
+ * <p>Only the common forms of JPEG image are handled; eight bit baseline
+ * or extended sequential Huffman coded images with one (grey) or three
+ * (YCbCr or RGB) components in a single interleaved scan.  For other
+ * images, such as progressive images, NULL is returned so that the caller
+ * can decode the image in some other way.</p>
+ */
+
+public class ScaledJpegDecoder {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ScaledJpegDecoder.class);
+
+    /**
+     * <p>This maps the position of a coefficient in the zig-zag order in
+     * which they are stored to its position in the 8x8 block.  It is also
+     * used by {@link BaselineJpegEncoder}.</p>
+     */
+
+    static final int[] ZIGZAG_TO_NATURAL = {
+            0, 1, 8, 16, 9, 2, 3, 10,
+            17, 24, 32, 25, 18, 11, 4, 5,
+            12, 19, 26, 33, 40, 48, 41, 34,
+            27, 20, 13, 6, 7, 14, 21, 28,
+            35, 42, 49, 56, 57, 50, 43, 36,
+            29, 22, 15, 23, 30, 37, 44, 51,
+            58, 59, 52, 45, 38, 31, 39, 46,
+            53, 60, 61, 54, 47, 55, 62, 63
+    };
+
+    private static final int[] SCALES = { 1, 2, 4 };
+
+    /**
+     * <p>Huffman codes up to this length are decoded with a single table
+     * look-up.</p>
+     */
+
+    private static final int HUFFMAN_LOOKAHEAD_BITS = 9;
+
+    private static final int[] CR_TO_R = new int[256];
+    private static final int[] CB_TO_B = new int[256];
+    private static final int[] CR_TO_G = new int[256];
+    private static final int[] CB_TO_G = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int c = i - 128;
+            CR_TO_R[i] = (int) Math.round(1.402 * c);
+            CB_TO_B[i] = (int) Math.round(1.772 * c);
+            CR_TO_G[i] = (int) Math.round(-0.714136 * 65536 * c);
+            CB_TO_G[i] = (int) Math.round(-0.344136 * 65536 * c) + 32768;
+        }
+    }
+
+    private final ByteBuffer data;
+
+    private final ImageBufferPool imageBufferPool;
+
+    /**
+     * <p>This is the size of the block of pixels that each block of
+     * coefficients is transformed into.</p>
+     */
+
+    private final int scale;
+
+    private final float[] inverseTransformMatrix;
+
+    private final int[] zigzagToBlock = new int[64];
+
+    /**
+     * <p>This holds the result of transforming the rows of a block.</p>
+     */
+
+    private final float[] transformedRows;
+
+    private final int[][] quantizationTables = new int[4][];
+
+    private final HuffmanTable[] dcTables = new HuffmanTable[4];
+
+    private final HuffmanTable[] acTables = new HuffmanTable[4];
+
+    private Component[] components = null;
+
+    private int width;
+
+    private int height;
+
+    private int maximumHorizontalSampling = 1;
+
+    private int maximumVerticalSampling = 1;
+
+    private int restartInterval = 0;
+
+    private int adobeTransform = -1;
+
+    private int position = 0;
+
+    private int bitBuffer = 0;
+
+    private int bitCount = 0;
+
+    private boolean markerReached = false;
+
+    private ScaledJpegDecoder(ByteBuffer data, int scale, ImageBufferPool imageBufferPool) {
+        this.data = data;
+        this.imageBufferPool = imageBufferPool;
+        this.scale = scale;
+        this.inverseTransformMatrix = createInverseTransformMatrix(scale);
+        this.transformedRows = new float[scale * scale];
+
+        for (int k = 0; k < 64; k++) {
+            int row = ZIGZAG_TO_NATURAL[k] / 8;
+            int column = ZIGZAG_TO_NATURAL[k] % 8;
+            zigzagToBlock[k] = row < scale && column < scale ? (row * scale) + column : -1;
+        }
+    }
+
+    /**
+     * <p>Returns the size, in eighths, at which an image should be decoded
+     * so that its longest edge is still at least the size supplied.  The
+     * result is 8 if the image cannot be decoded at a reduced size.</p>
+     */
+
+    public static int chooseScale(int width, int height, int minimumLongestEdge) {
+        int longestEdge = Math.max(width, height);
+
+        for (int scale : SCALES) {
+            if ((longestEdge * scale + 7) / 8 >= minimumLongestEdge) {
+                return scale;
+            }
+        }
+
+        return 8;
+    }
+
+    /**
+     * <p>Decodes the JPEG data at the smallest reduced size at which the
+     * longest edge of the image is still at least the size supplied.  NULL
+     * is returned if the image is too small to be reduced or is in a form
+     * that this class does not handle.  The image and the working planes of
+     * the components are backed by arrays from the pool.</p>
+     */
+
+    public static BufferedImage decode(
+            ByteBuffer jpegData,
+            int minimumLongestEdge,
+            ImageBufferPool imageBufferPool) throws IOException {
+        Preconditions.checkArgument(null!=jpegData, "the jpeg data must be provided");
+        Preconditions.checkArgument(null!=imageBufferPool, "the image buffer pool must be provided");
+
+        JpegHelper.Frame frame = JpegHelper.readFrame(jpegData);
+
+        if (frame.isProgressive()) {
+            return null;
+        }
+
+        int scale = chooseScale(frame.getWidth(), frame.getHeight(), minimumLongestEdge);
+
+        if (8 == scale) {
+            return null;
+        }
+
+        try {
+            return new ScaledJpegDecoder(jpegData, scale, imageBufferPool).decode();
+        } catch (UnsupportedJpegException uje) {
+            LOGGER.debug("unable to decode the jpeg data at a reduced size; {}", uje.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * <p>The inverse transform from the lowest {@code scale x scale}
+     * coefficients of an 8x8 block straight to a {@code scale x scale}
+     * block of pixels is the same as the usual inverse transform but with
+     * the cosines over the smaller block.  The matrix has the value for
+     * each output pixel (row) and coefficient (column).</p>
+     */
+
+    private static float[] createInverseTransformMatrix(int scale) {
+        float[] result = new float[scale * scale];
+
+        for (int n = 0; n < scale; n++) {
+            for (int u = 0; u < scale; u++) {
+                double c = 0 == u ? Math.sqrt(0.5) : 1.0;
+                result[(n * scale) + u] = (float) (c / 2.0 * Math.cos(Math.PI * ((2 * n) + 1) * u / (2.0 * scale)));
+            }
+        }
+
+        return result;
+    }
+
+    private BufferedImage decode() throws IOException {
+        if (0xFFD8 != readUnsignedShort()) {
+            throw new IOException("missing SOI marker");
+        }
+
+        while (true) {
+            int marker = readMarker();
+
+            switch (marker) {
+                case 0xFFDB -> readQuantizationTables();
+                case 0xFFC4 -> readHuffmanTables();
+                case 0xFFC0, 0xFFC1 -> readFrame();
+                case 0xFFC2, 0xFFC3, 0xFFC5, 0xFFC6, 0xFFC7, 0xFFC9, 0xFFCA, 0xFFCB, 0xFFCD, 0xFFCE, 0xFFCF ->
+                        throw new UnsupportedJpegException("unsupported frame type; " + Integer.toHexString(marker));
+                case 0xFFDD -> readRestartInterval();
+                case 0xFFEE -> readAdobeSegment();
+                case 0xFFDA -> {
+                    try {
+                        readScan();
+                        return createImage();
+                    } finally {
+                        releasePlanes();
+                    }
+                }
+                case 0xFFD9 -> throw new IOException("the image ended before the image data");
+                default -> skipSegment();
+            }
+        }
+    }
+
+    // ----------------------------------------------
+    // SEGMENTS
+    // ----------------------------------------------
+
+    private int readUnsignedByte() throws IOException {
+        if (position >= data.limit()) {
+            throw new IOException("unexpected end of jpeg data");
+        }
+
+        return data.get(position++) & 0xFF;
+    }
+
+    private int readUnsignedShort() throws IOException {
+        return (readUnsignedByte() << 8) | readUnsignedByte();
+    }
+
+    /**
+     * <p>Fill bytes of 0xFF may come before a marker.</p>
+     */
+
+    private int readMarker() throws IOException {
+        if (0xFF != readUnsignedByte()) {
+            throw new IOException("bad segment marker; all segment markers should start with 0xFF");
+        }
+
+        int result;
+
+        while (0xFF == (result = readUnsignedByte())) {
+            // fill byte
+        }
+
+        return 0xFF00 | result;
+    }
+
+    /**
+     * <p>Returns the offset of the end of the segment that starts at the
+     * current position.</p>
+     */
+
+    private int readSegmentEnd() throws IOException {
+        int length = readUnsignedShort();
+
+        if (length < 2 || position - 2 + length > data.limit()) {
+            throw new IOException("bad segment length");
+        }
+
+        return position - 2 + length;
+    }
+
+    private void skipSegment() throws IOException {
+        position = readSegmentEnd();
+    }
+
+    private void readQuantizationTables() throws IOException {
+        int end = readSegmentEnd();
+
+        while (position < end) {
+            int precisionAndId = readUnsignedByte();
+            int id = precisionAndId & 0x0F;
+            boolean sixteenBit = 0 != (precisionAndId >> 4);
+            int[] table = new int[64];
+
+            if (id > 3) {
+                throw new IOException("bad quantization table id");
+            }
+
+            for (int k = 0; k < 64; k++) {
+                table[k] = sixteenBit ? readUnsignedShort() : readUnsignedByte();
+            }
+
+            quantizationTables[id] = table;
+        }
+
+        position = end;
+    }
+
+    private void readHuffmanTables() throws IOException {
+        int end = readSegmentEnd();
+
+        while (position < end) {
+            int classAndId = readUnsignedByte();
+            int id = classAndId & 0x0F;
+            int[] counts = new int[17];
+            int total = 0;
+
+            if (id > 3) {
+                throw new IOException("bad huffman table id");
+            }
+
+            for (int length = 1; length <= 16; length++) {
+                counts[length] = readUnsignedByte();
+                total += counts[length];
+            }
+
+            if (total > 256) {
+                throw new IOException("bad huffman table");
+            }
+
+            int[] values = new int[total];
+
+            for (int i = 0; i < total; i++) {
+                values[i] = readUnsignedByte();
+            }
+
+            HuffmanTable table = new HuffmanTable(counts, values);
+
+            if (0 == (classAndId >> 4)) {
+                dcTables[id] = table;
+            } else {
+                acTables[id] = table;
+            }
+        }
+
+        position = end;
+    }
+
+    private void readFrame() throws IOException {
+        int end = readSegmentEnd();
+
+        if (8 != readUnsignedByte()) {
+            throw new UnsupportedJpegException("only eight bit precision is supported");
+        }
+
+        height = readUnsignedShort();
+        width = readUnsignedShort();
+
+        if (0 == height || 0 == width) {
+            throw new UnsupportedJpegException("the size of the image is not in the frame header");
+        }
+
+        int componentCount = readUnsignedByte();
+
+        if (1 != componentCount && 3 != componentCount) {
+            throw new UnsupportedJpegException("unsupported quantity of components; " + componentCount);
+        }
+
+        components = new Component[componentCount];
+
+        for (int i = 0; i < componentCount; i++) {
+            int id = readUnsignedByte();
+            int sampling = readUnsignedByte();
+            int quantizationTableId = readUnsignedByte() & 0x03;
+            Component component = new Component(id, sampling >> 4, sampling & 0x0F, quantizationTableId);
+
+            if (component.horizontalSampling < 1 || component.horizontalSampling > 4
+                    || component.verticalSampling < 1 || component.verticalSampling > 4) {
+                throw new IOException("bad sampling factors");
+            }
+
+            maximumHorizontalSampling = Math.max(maximumHorizontalSampling, component.horizontalSampling);
+            maximumVerticalSampling = Math.max(maximumVerticalSampling, component.verticalSampling);
+            components[i] = component;
+        }
+
+        position = end;
+    }
+
+    private void readRestartInterval() throws IOException {
+        int end = readSegmentEnd();
+        restartInterval = readUnsignedShort();
+        position = end;
+    }
+
+    private void readAdobeSegment() throws IOException {
+        int end = readSegmentEnd();
+
+        if (end - position >= 12) {
+            byte[] identifier = new byte[5];
+            data.get(position, identifier);
+
+            if ("Adobe".equals(new String(identifier, StandardCharsets.US_ASCII))) {
+                adobeTransform = data.get(position + 11) & 0xFF;
+            }
+        }
+
+        position = end;
+    }
+
+    // ----------------------------------------------
+    // SCAN
+    // ----------------------------------------------
+
+    private void readScan() throws IOException {
+        if (null == components) {
+            throw new IOException("the image data starts before the frame header");
+        }
+
+        int end = readSegmentEnd();
+        int componentCount = readUnsignedByte();
+
+        if (componentCount != components.length) {
+            throw new UnsupportedJpegException("only images with a single interleaved scan are supported");
+        }
+
+        for (int i = 0; i < componentCount; i++) {
+            Component component = findComponent(readUnsignedByte());
+            int tableIds = readUnsignedByte();
+            component.dcTable = dcTables[(tableIds >> 4) & 0x03];
+            component.acTable = acTables[tableIds & 0x03];
+            component.quantizationTable = quantizationTables[component.quantizationTableId];
+
+            if (null == component.dcTable || null == component.acTable || null == component.quantizationTable) {
+                throw new IOException("a table used by the scan has not been defined");
+            }
+        }
+
+        position = end;
+
+        // a single component is not interleaved so the minimum coded unit is
+        // a single block whatever the sampling factors are.
+
+        int mcuColumns;
+        int mcuRows;
+
+        if (1 == components.length) {
+            Component component = components[0];
+            component.horizontalSampling = 1;
+            component.verticalSampling = 1;
+            maximumHorizontalSampling = 1;
+            maximumVerticalSampling = 1;
+        }
+
+        mcuColumns = (width + (8 * maximumHorizontalSampling) - 1) / (8 * maximumHorizontalSampling);
+        mcuRows = (height + (8 * maximumVerticalSampling) - 1) / (8 * maximumVerticalSampling);
+
+        for (Component component : components) {
+            component.planeWidth = mcuColumns * component.horizontalSampling * scale;
+            component.plane = imageBufferPool.take(
+                    component.planeWidth * mcuRows * component.verticalSampling * scale);
+        }
+
+        float[] block = new float[scale * scale];
+        int mcuCount = mcuColumns * mcuRows;
+
+        for (int mcu = 0; mcu < mcuCount; mcu++) {
+            if (0 != restartInterval && 0 != mcu && 0 == mcu % restartInterval) {
+                readRestartMarker();
+            }
+
+            int mcuColumn = mcu % mcuColumns;
+            int mcuRow = mcu / mcuColumns;
+
+            for (Component component : components) {
+                for (int v = 0; v < component.verticalSampling; v++) {
+                    for (int h = 0; h < component.horizontalSampling; h++) {
+                        decodeBlock(component, block);
+                        inverseTransform(
+                                block,
+                                component,
+                                ((mcuColumn * component.horizontalSampling) + h) * scale,
+                                ((mcuRow * component.verticalSampling) + v) * scale);
+                    }
+                }
+            }
+        }
+    }
+
+    private Component findComponent(int id) throws IOException {
+        for (Component component : components) {
+            if (component.id == id) {
+                return component;
+            }
+        }
+
+        throw new IOException("the scan refers to an unknown component; " + id);
+    }
+
+    private void readRestartMarker() throws IOException {
+        bitBuffer = 0;
+        bitCount = 0;
+        markerReached = false;
+
+        int marker = readMarker();
+
+        if (marker < 0xFFD0 || marker > 0xFFD7) {
+            throw new IOException("expected a restart marker; " + Integer.toHexString(marker));
+        }
+
+        for (Component component : components) {
+            component.dcPrediction = 0;
+        }
+    }
+
+    /**
+     * <p>Only the coefficients that are needed for the reduced size are kept
+     * but all of the coefficients have to be decoded to get to the next
+     * block.</p>
+     */
+
+    private void decodeBlock(Component component, float[] block) throws IOException {
+        int[] quantizationTable = component.quantizationTable;
+
+        Arrays.fill(block, 0f);
+
+        int dcSize = decodeHuffman(component.dcTable);
+        component.dcPrediction += receiveExtend(dcSize);
+        block[0] = component.dcPrediction * quantizationTable[0];
+
+        HuffmanTable acTable = component.acTable;
+
+        for (int k = 1; k < 64; k++) {
+            int runAndSize = decodeHuffman(acTable);
+            int run = runAndSize >> 4;
+            int size = runAndSize & 0x0F;
+
+            if (0 == size) {
+                if (15 != run) {
+                    break; // end of block
+                }
+
+                k += 15;
+            } else {
+                k += run;
+
+                if (k > 63) {
+                    throw new IOException("bad run length in the image data");
+                }
+
+                int value = receiveExtend(size);
+                int blockIndex = zigzagToBlock[k];
+
+                if (-1 != blockIndex) {
+                    block[blockIndex] = value * quantizationTable[k];
+                }
+            }
+        }
+    }
+
+    private void inverseTransform(float[] block, Component component, int x, int y) {
+        byte[] plane = component.plane;
+        int planeWidth = component.planeWidth;
+
+        if (1 == scale) {
+            plane[(y * planeWidth) + x] = clamp((block[0] / 8f) + 128f);
+            return;
+        }
+
+        float[] matrix = inverseTransformMatrix;
+        float[] rows = transformedRows;
+
+        for (int v = 0; v < scale; v++) {
+            for (int n = 0; n < scale; n++) {
+                float sum = 0f;
+
+                for (int u = 0; u < scale; u++) {
+                    sum += matrix[(n * scale) + u] * block[(v * scale) + u];
+                }
+
+                rows[(v * scale) + n] = sum;
+            }
+        }
+
+        for (int m = 0; m < scale; m++) {
+            int offset = ((y + m) * planeWidth) + x;
+
+            for (int n = 0; n < scale; n++) {
+                float sum = 0f;
+
+                for (int v = 0; v < scale; v++) {
+                    sum += matrix[(m * scale) + v] * rows[(v * scale) + n];
+                }
+
+                plane[offset + n] = clamp(sum + 128f);
+            }
+        }
+    }
+
+    private static byte clamp(float value) {
+        int result = Math.round(value);
+        return (byte) (result < 0 ? 0 : (Math.min(result, 255)));
+    }
+
+    // ----------------------------------------------
+    // ENTROPY DECODING
+    // ----------------------------------------------
+
+    /**
+     * <p>Once a marker is reached in the image data, zero bits are supplied
+     * in place of the data.</p>
+     */
+
+    private int readEntropyCodedByte() {
+        if (markerReached || position >= data.limit()) {
+            markerReached = true;
+            return 0;
+        }
+
+        int result = data.get(position) & 0xFF;
+
+        if (0xFF == result) {
+            if (position + 1 < data.limit() && 0 == data.get(position + 1)) {
+                position += 2;
+            } else {
+                markerReached = true;
+                return 0;
+            }
+        } else {
+            position++;
+        }
+
+        return result;
+    }
+
+    private void fillBits() {
+        while (bitCount <= 24) {
+            bitBuffer |= readEntropyCodedByte() << (24 - bitCount);
+            bitCount += 8;
+        }
+    }
+
+    private int decodeHuffman(HuffmanTable table) throws IOException {
+        fillBits();
+
+        int entry = table.lookup[bitBuffer >>> (32 - HUFFMAN_LOOKAHEAD_BITS)];
+
+        if (0 != entry) {
+            int length = entry >> 8;
+            bitBuffer <<= length;
+            bitCount -= length;
+            return entry & 0xFF;
+        }
+
+        for (int length = HUFFMAN_LOOKAHEAD_BITS + 1; length <= 16; length++) {
+            int code = bitBuffer >>> (32 - length);
+
+            if (code <= table.maximumCodes[length]) {
+                bitBuffer <<= length;
+                bitCount -= length;
+                return table.values[code + table.valueOffsets[length]];
+            }
+        }
+
+        throw new IOException("bad huffman code in the image data");
+    }
+
+    private int receiveExtend(int size) {
+        if (0 == size) {
+            return 0;
+        }
+
+        fillBits();
+
+        int value = bitBuffer >>> (32 - size);
+        bitBuffer <<= size;
+        bitCount -= size;
+
+        return value < (1 << (size - 1)) ? value - (1 << size) + 1 : value;
+    }
+
+    // ----------------------------------------------
+    // IMAGE
+    // ----------------------------------------------
+
+    private BufferedImage createImage() {
+        int imageWidth = ((width * scale) + 7) / 8;
+        int imageHeight = ((height * scale) + 7) / 8;
+
+        if (1 == components.length) {
+            BufferedImage result = imageBufferPool.createImage(imageWidth, imageHeight, BufferedImage.TYPE_BYTE_GRAY);
+            byte[] pixels = ((DataBufferByte) result.getRaster().getDataBuffer()).getData();
+            Component component = components[0];
+
+            for (int y = 0; y < imageHeight; y++) {
+                System.arraycopy(component.plane, y * component.planeWidth, pixels, y * imageWidth, imageWidth);
+            }
+
+            return result;
+        }
+
+        // an Adobe transform of zero or components named R, G and B mean that
+        // the image is RGB rather than YCbCr.
+
+        boolean rgb = 0 == adobeTransform
+                || (-1 == adobeTransform && 'R' == components[0].id && 'G' == components[1].id && 'B' == components[2].id);
+
+        // the image is of the same type as ImageIO produces for a JPEG image.
+
+        BufferedImage result = imageBufferPool.createImage(imageWidth, imageHeight, BufferedImage.TYPE_3BYTE_BGR);
+        byte[] pixels = ((DataBufferByte) result.getRaster().getDataBuffer()).getData();
+        Component c0 = components[0];
+        Component c1 = components[1];
+        Component c2 = components[2];
+
+        for (int y = 0; y < imageHeight; y++) {
+            int offset0 = ((y * c0.verticalSampling) / maximumVerticalSampling) * c0.planeWidth;
+            int offset1 = ((y * c1.verticalSampling) / maximumVerticalSampling) * c1.planeWidth;
+            int offset2 = ((y * c2.verticalSampling) / maximumVerticalSampling) * c2.planeWidth;
+            int pixelOffset = y * imageWidth * 3;
+
+            for (int x = 0; x < imageWidth; x++) {
+                int a = c0.plane[offset0 + ((x * c0.horizontalSampling) / maximumHorizontalSampling)] & 0xFF;
+                int b = c1.plane[offset1 + ((x * c1.horizontalSampling) / maximumHorizontalSampling)] & 0xFF;
+                int c = c2.plane[offset2 + ((x * c2.horizontalSampling) / maximumHorizontalSampling)] & 0xFF;
+
+                if (!rgb) {
+                    int r = a + CR_TO_R[c];
+                    int g = a + ((CB_TO_G[b] + CR_TO_G[c]) >> 16);
+                    int bl = a + CB_TO_B[b];
+                    a = r < 0 ? 0 : Math.min(r, 255);
+                    b = g < 0 ? 0 : Math.min(g, 255);
+                    c = bl < 0 ? 0 : Math.min(bl, 255);
+                }
+
+                int offset = pixelOffset + (x * 3);
+                pixels[offset] = (byte) c;
+                pixels[offset + 1] = (byte) b;
+                pixels[offset + 2] = (byte) a;
+            }
+        }
+
+        return result;
+    }
+
+    private void releasePlanes() {
+        for (Component component : components) {
+            if (null != component.plane) {
+                imageBufferPool.release(component.plane);
+                component.plane = null;
+            }
+        }
+    }
+
+    // ----------------------------------------------
+
+    private static final class Component {
+
+        private final int id;
+
+        private int horizontalSampling;
+
+        private int verticalSampling;
+
+        private final int quantizationTableId;
+
+        private int[] quantizationTable;
+
+        private HuffmanTable dcTable;
+
+        private HuffmanTable acTable;
+
+        private int dcPrediction = 0;
+
+        private byte[] plane;
+
+        private int planeWidth;
+
+        Component(int id, int horizontalSampling, int verticalSampling, int quantizationTableId) {
+            this.id = id;
+            this.horizontalSampling = horizontalSampling;
+            this.verticalSampling = verticalSampling;
+            this.quantizationTableId = quantizationTableId;
+        }
+
+    }
+
+    /**
+     * <p>The codes of a Huffman table are assigned in order of length.  Short
+     * codes are found with a look-up table that has an entry for every
+     * value of the next few bits; each entry has the length of the code and
+     * the value.  Longer codes are found by comparing against the largest
+     * code of each length.</p>
+     */
+
+    private static final class HuffmanTable {
+
+        private final int[] lookup = new int[1 << HUFFMAN_LOOKAHEAD_BITS];
+
+        private final int[] maximumCodes = new int[17];
+
+        private final int[] valueOffsets = new int[17];
+
+        private final int[] values;
+
+        HuffmanTable(int[] counts, int[] values) {
+            this.values = values;
+
+            int code = 0;
+            int k = 0;
+
+            for (int length = 1; length <= 16; length++) {
+                valueOffsets[length] = k - code;
+
+                for (int i = 0; i < counts[length]; i++) {
+                    if (length <= HUFFMAN_LOOKAHEAD_BITS) {
+                        int shift = HUFFMAN_LOOKAHEAD_BITS - length;
+
+                        for (int j = 0; j < (1 << shift); j++) {
+                            lookup[(code << shift) | j] = (length << 8) | values[k];
+                        }
+                    }
+
+                    code++;
+                    k++;
+                }
+
+                maximumCodes[length] = 0 == counts[length] ? -1 : code - 1;
+                code <<= 1;
+            }
+        }
+
+    }
+
+    private static final class UnsupportedJpegException extends IOException {
+
+        UnsupportedJpegException(String message) {
+            super(message);
+        }
+
+    }
+
+}
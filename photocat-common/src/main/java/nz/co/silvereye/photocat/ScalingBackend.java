@@ -0,0 +1,61 @@
+/*
+ * Copyright 2016-2023, Andrew Lindesay. All Rights Reserved.
+ * Distributed under the terms of the MIT License.
+ *
+ * Authors:
+ *		Andrew Lindesay, apl@lindesay.co.nz
+ */
+
+package nz.co.silvereye.photocat;
+
+import com.google.common.base.Preconditions;
+import org.imgscalr.Scalr;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * <p>This is the way in which an image is scaled down to the size of a
+ * thumbnail.</p>
+ */
+
+public enum ScalingBackend {
+
+    /**
+     * <p>The image is scaled with Java2D using the imgscalr library.  For
+     * {@link ScalingQuality#QUALITY}, imgscalr chooses the method to use
+     * from the size of the thumbnail and for {@link ScalingQuality#SPEED}
+     * it scales in a single step.</p>
+     */
+
+    JAVA2D,
+
+    /**
+     * <p>Each pixel of the thumbnail is the average of the area of the
+     * image that it covers; see {@link AreaAveragingScaler}.  Images that
+     * are not being made smaller are scaled with {@link #JAVA2D}.</p>
+     */
+
+    AREA_AVERAGING;
+
+    /**
+     * <p>Scales the image so that its longest edge is the size supplied.</p>
+     */
+
+    public BufferedImage scale(BufferedImage bi, int maximumWidthOrHeight, ScalingQuality quality) {
+        Preconditions.checkArgument(null!=bi, "the image must be provided");
+        Preconditions.checkArgument(maximumWidthOrHeight > 0, "the maximum width or height must be positive");
+        Preconditions.checkArgument(null!=quality, "the quality must be provided");
+
+        return switch (this) {
+            case JAVA2D -> Scalr.resize(
+                    bi,
+                    ScalingQuality.SPEED == quality ? Scalr.Method.SPEED : Scalr.Method.AUTOMATIC,
+                    maximumWidthOrHeight);
+            case AREA_AVERAGING -> {
+                BufferedImage result = AreaAveragingScaler.scale(bi, maximumWidthOrHeight, quality);
+                yield null != result ? result : JAVA2D.scale(bi, maximumWidthOrHeight, quality);
+            }
+        };
+    }
+
+}
@@ -0,0 +1,23 @@
+/*
+ * Copyright 2016-2023, Andrew Lindesay. All Rights Reserved.
+ * Distributed under the terms of the MIT License.
+ *
+ * Authors:
+ *		Andrew Lindesay, apl@lindesay.co.nz
+ */
+
+package nz.co.silvereye.photocat;
+
+/**
+ * <p>This is the trade-off between speed and quality made when an image
+ * is scaled down to the size of a thumbnail.  See {@link ScalingBackend}
+ * for what each means to each way of scaling.</p>
+ */
+
+public enum ScalingQuality {
+
+    SPEED,
+
+    QUALITY
+
+}
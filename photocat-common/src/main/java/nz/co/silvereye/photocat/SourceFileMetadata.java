@@ -0,0 +1,42 @@
+/*
+ * Copyright 2016-2023, Andrew Lindesay. All Rights Reserved.
+ * Distributed under the terms of the MIT License.
+ *
+ * Authors:
+ *		Andrew Lindesay, apl@lindesay.co.nz
+ */
+
+package nz.co.silvereye.photocat;
+
+/**
+ * <p>This class holds the meta-data that is read from a source file;
+ * typically from the EXIF data in a JPEG file.  Either value may be
+ * NULL if it was not able to be obtained.</p>
+ */
+
+public class SourceFileMetadata {
+
+    public static final SourceFileMetadata EMPTY = new SourceFileMetadata(null, null);
+
+    /**
+     * <p>This is the time at which the photograph was taken.</p>
+     */
+
+    private final java.util.Date timestamp;
+
+    private final String description;
+
+    public SourceFileMetadata(java.util.Date timestamp, String description) {
+        this.timestamp = timestamp;
+        this.description = description;
+    }
+
+    public java.util.Date getTimestamp() {
+        return timestamp;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+}
@@ -0,0 +1,341 @@
+/*
+ * Copyright 2016-2023, Andrew Lindesay. All Rights Reserved.
+ * Distributed under the terms of the MIT License.
+ *
+ * Authors:
+ *		Andrew Lindesay, apl@lindesay.co.nz
+ */
+
+package nz.co.silvereye.photocat;
+
+import com.google.common.base.Preconditions;
+import com.google.common.hash.Hashing;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * <p>This class keeps encoded thumbnails between runs so that a file which
+ * has not changed does not need to be decoded and scaled again.  There are
+ * two tiers; the thumbnails that have been used recently are kept in memory
+ * up to a limit and all of the thumbnails are kept in a directory up to a
+ * limit.  When either limit is reached, the thumbnails that have been used
+ * least recently are evicted.</p>
+ *
+ * <p>The thumbnails are addressed by a key that identifies the content of
+ * the source file and the parameters used to make the thumbnail; see
+ * {@link #createKey(String...)}.  The directory may be shared by a number
+ * of processes.  A thumbnail is written to a temporary file and is then
+ * moved into place so that a partly written thumbnail is never read.  A
+ * thumbnail that another process has evicted is treated as missing and
+ * only one process at a time evicts thumbnails.  The modification time of
+ * a thumbnail file is updated when it is used so that the least recently
+ * used thumbnails are evicted first.</p>
+ */
+
+public class ThumbnailCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ThumbnailCache.class);
+
+    /**
+     * <p>This is changed if the layout of the directory changes so that
+     * thumbnails stored in an old layout are not used.</p>
+     */
+
+    private static final String LAYOUT_VERSION = "v1";
+
+    private static final String SUFFIX_THUMBNAIL = ".jpg";
+
+    private static final String SUFFIX_PARTIAL = ".part";
+
+    private static final String FILENAME_LOCK = "eviction.lock";
+
+    /**
+     * <p>Once the directory has reached its limit, thumbnails are evicted
+     * until it is down to this proportion of the limit so that eviction is
+     * not needed again straight away.</p>
+     */
+
+    private static final double EVICTION_TARGET_RATIO = 0.9;
+
+    /**
+     * <p>Temporary files older than this were left by a process that did
+     * not finish writing them and are deleted when evicting.</p>
+     */
+
+    private static final long ABANDONED_PARTIAL_MILLIS = 60L * 60 * 1000;
+
+    private final Path directory;
+
+    private final long maximumDirectoryBytes;
+
+    private final long maximumMemoryBytes;
+
+    private final Map<String, byte[]> memoryThumbnails = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long memoryBytes = 0;
+
+    /**
+     * <p>This is an estimate of the size of the directory.  It is only
+     * correct when it has just been measured because other processes may
+     * also be storing thumbnails in the directory.  It is -1 until it has
+     * been measured.</p>
+     */
+
+    private final AtomicLong estimatedDirectoryBytes = new AtomicLong(-1);
+
+    private final AtomicInteger countHits = new AtomicInteger(0);
+
+    private final AtomicInteger countMisses = new AtomicInteger(0);
+
+    public ThumbnailCache(Path directory, long maximumDirectoryBytes, long maximumMemoryBytes) {
+        Preconditions.checkArgument(null!=directory, "the directory must be provided");
+        Preconditions.checkArgument(maximumDirectoryBytes >= 0, "the maximum directory bytes must not be negative");
+        Preconditions.checkArgument(maximumMemoryBytes >= 0, "the maximum memory bytes must not be negative");
+
+        this.directory = directory.resolve(LAYOUT_VERSION);
+        this.maximumDirectoryBytes = maximumDirectoryBytes;
+        this.maximumMemoryBytes = maximumMemoryBytes;
+    }
+
+    /**
+     * <p>Creates a key from the parts supplied.  The parts should identify
+     * the content of the source file, such as its path, size and
+     * modification time, and all of the parameters that affect the
+     * thumbnail.</p>
+     */
+
+    public static String createKey(String... parts) {
+        return Hashing.sha256().hashString(String.join("\n", parts), StandardCharsets.UTF_8).toString();
+    }
+
+    private Path getThumbnailPath(String key) {
+        return directory.resolve(key.substring(0, 2)).resolve(key + SUFFIX_THUMBNAIL);
+    }
+
+    public int getCountHits() {
+        return countHits.get();
+    }
+
+    public int getCountMisses() {
+        return countMisses.get();
+    }
+
+    /**
+     * <p>Returns the encoded thumbnail for the key or NULL if there is no
+     * such thumbnail in the cache.</p>
+     */
+
+    public byte[] get(String key) {
+        Preconditions.checkArgument(null!=key, "the key must be provided");
+
+        synchronized (memoryThumbnails) {
+            byte[] data = memoryThumbnails.get(key);
+
+            if (null != data) {
+                countHits.incrementAndGet();
+                return data;
+            }
+        }
+
+        Path path = getThumbnailPath(key);
+
+        try {
+            byte[] data = Files.readAllBytes(path);
+            Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+            putInMemory(key, data);
+            countHits.incrementAndGet();
+            return data;
+        } catch (NoSuchFileException nsfe) {
+            countMisses.incrementAndGet();
+            return null;
+        } catch (IOException ioe) {
+            LOGGER.warn("unable to read the cached thumbnail; {}", path, ioe);
+            countMisses.incrementAndGet();
+            return null;
+        }
+    }
+
+    /**
+     * <p>Stores the encoded thumbnail with the key.  A failure to store the
+     * thumbnail in the directory is logged but is otherwise ignored.</p>
+     */
+
+    public void put(String key, byte[] data) {
+        Preconditions.checkArgument(null!=key, "the key must be provided");
+        Preconditions.checkArgument(null!=data, "the data must be provided");
+
+        putInMemory(key, data);
+
+        Path path = getThumbnailPath(key);
+        Path partialPath = null;
+
+        try {
+            Files.createDirectories(path.getParent());
+            partialPath = Files.createTempFile(path.getParent(), key, SUFFIX_PARTIAL);
+            Files.write(partialPath, data);
+            Files.move(partialPath, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            partialPath = null;
+        } catch (IOException ioe) {
+            LOGGER.warn("unable to store the thumbnail in the cache; {}", path, ioe);
+            return;
+        } finally {
+            if (null != partialPath) {
+                try {
+                    Files.deleteIfExists(partialPath);
+                } catch (IOException ioe) {
+                    LOGGER.warn("unable to delete the partial thumbnail; {}", partialPath, ioe);
+                }
+            }
+        }
+
+        if (estimatedDirectoryBytes.get() < 0) {
+            estimatedDirectoryBytes.compareAndSet(-1, measureDirectoryBytes());
+        }
+
+        if (estimatedDirectoryBytes.addAndGet(data.length) > maximumDirectoryBytes) {
+            evict();
+        }
+    }
+
+    private void putInMemory(String key, byte[] data) {
+        if (data.length > maximumMemoryBytes) {
+            return;
+        }
+
+        synchronized (memoryThumbnails) {
+            byte[] existingData = memoryThumbnails.put(key, data);
+
+            if (null != existingData) {
+                memoryBytes -= existingData.length;
+            }
+
+            memoryBytes += data.length;
+
+            Iterator<byte[]> iterator = memoryThumbnails.values().iterator();
+
+            while (memoryBytes > maximumMemoryBytes && iterator.hasNext()) {
+                memoryBytes -= iterator.next().length;
+                iterator.remove();
+            }
+        }
+    }
+
+    private long measureDirectoryBytes() {
+        long result = 0;
+
+        for (CachedFile cachedFile : listCachedFiles()) {
+            result += cachedFile.size();
+        }
+
+        return result;
+    }
+
+    private List<CachedFile> listCachedFiles() {
+        List<CachedFile> result = new ArrayList<>();
+
+        if (!Files.isDirectory(directory)) {
+            return result;
+        }
+
+        try (Stream<Path> paths = Files.walk(directory, 2)) {
+            paths.forEach(path -> {
+                try {
+                    BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+
+                    if (attributes.isRegularFile()) {
+                        result.add(new CachedFile(path, attributes.size(), attributes.lastModifiedTime().toMillis()));
+                    }
+                } catch (IOException ioe) {
+                    // another process may have evicted the file
+                }
+            });
+        } catch (IOException | UncheckedIOException e) {
+            LOGGER.warn("unable to list the thumbnail cache; {}", directory, e);
+        }
+
+        return result;
+    }
+
+    /**
+     * <p>Deletes the least recently used thumbnails from the directory until
+     * it is under its limit.  If another process is already evicting then
+     * this process leaves it to that process.</p>
+     */
+
+    private void evict() {
+        try (FileChannel lockChannel = FileChannel.open(
+                directory.resolve(FILENAME_LOCK),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            FileLock lock;
+
+            try {
+                lock = lockChannel.tryLock();
+            } catch (OverlappingFileLockException ofle) {
+                lock = null; // another thread of this process is evicting
+            }
+
+            if (null == lock) {
+                return;
+            }
+
+            try {
+                List<CachedFile> cachedFiles = listCachedFiles();
+                long now = System.currentTimeMillis();
+                long bytes = 0;
+
+                for (CachedFile cachedFile : cachedFiles) {
+                    bytes += cachedFile.size();
+                }
+
+                cachedFiles.sort(Comparator.comparingLong(CachedFile::modifiedMillis));
+
+                long targetBytes = (long) (maximumDirectoryBytes * EVICTION_TARGET_RATIO);
+                int countEvicted = 0;
+
+                for (CachedFile cachedFile : cachedFiles) {
+                    String fileName = cachedFile.path().getFileName().toString();
+                    boolean partial = fileName.endsWith(SUFFIX_PARTIAL);
+                    boolean thumbnail = fileName.endsWith(SUFFIX_THUMBNAIL);
+
+                    if ((thumbnail && bytes > targetBytes)
+                            || (partial && now - cachedFile.modifiedMillis() > ABANDONED_PARTIAL_MILLIS)) {
+                        if (Files.deleteIfExists(cachedFile.path())) {
+                            bytes -= cachedFile.size();
+                            countEvicted++;
+                        }
+                    }
+                }
+
+                estimatedDirectoryBytes.set(bytes);
+                LOGGER.info("have evicted {} files from the thumbnail cache; {} bytes remain", countEvicted, bytes);
+            } finally {
+                lock.release();
+            }
+        } catch (IOException ioe) {
+            LOGGER.warn("unable to evict thumbnails from the cache; {}", directory, ioe);
+        }
+    }
+
+    private record CachedFile(Path path, long size, long modifiedMillis) {
+    }
+
+}
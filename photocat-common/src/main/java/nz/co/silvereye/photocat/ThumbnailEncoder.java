@@ -0,0 +1,51 @@
+/*
+ * Copyright 2016-2023, Andrew Lindesay. All Rights Reserved.
+ * Distributed under the terms of the MIT License.
+ *
+ * Authors:
+ *		Andrew Lindesay, apl@lindesay.co.nz
+ */
+
+package nz.co.silvereye.photocat;
+
+import com.google.common.base.Preconditions;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+/**
+ * <p>This is the way in which a scaled image is encoded as the JPEG data of
+ * a thumbnail.  Either way, the encoder is kept for the thread.</p>
+ */
+
+public enum ThumbnailEncoder {
+
+    /**
+     * <p>The image is encoded with the ImageIO JPEG writer.</p>
+     */
+
+    IMAGEIO,
+
+    /**
+     * <p>The image is encoded with {@link BaselineJpegEncoder} which
+     * produces the same form of JPEG image as ImageIO with much less
+     * overhead for each image.</p>
+     */
+
+    BASELINE;
+
+    /**
+     * <p>Encodes the image as JPEG data.</p>
+     */
+
+    public byte[] encode(BufferedImage bi) throws IOException {
+        Preconditions.checkArgument(null!=bi, "the image must be provided");
+        ImageCodecs imageCodecs = ImageCodecs.forCurrentThread();
+
+        return switch (this) {
+            case IMAGEIO -> imageCodecs.writeJpeg(bi);
+            case BASELINE -> imageCodecs.writeBaselineJpeg(bi);
+        };
+    }
+
+}
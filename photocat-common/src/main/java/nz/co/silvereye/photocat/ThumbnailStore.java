@@ -0,0 +1,366 @@
+/*
+ * Copyright 2016-2023, Andrew Lindesay. All Rights Reserved.
+ * Distributed under the terms of the MIT License.
+ *
+ * Authors:
+ *		Andrew Lindesay, apl@lindesay.co.nz
+ */
+
+package nz.co.silvereye.photocat;
+
+import com.google.common.base.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>This class keeps the encoded thumbnails of a job.  Thumbnails are held
+ * in memory outside of the heap until the memory budget is used up after
+ * which further thumbnails are appended to a single pack file.  This avoids
+ * creating, reading and deleting a file for each thumbnail.</p>
+ *
+ * <p>The memory is allocated as a few large slabs into which the
+ * thumbnails are packed one after the other rather than as a buffer for
+ * each thumbnail.  A slab whose thumbnails have all been removed is used
+ * again.  Memory outside of the heap is limited separately from the heap
+ * so, if a slab is not able to be allocated, the budget is treated as
+ * used up and further thumbnails go to the pack file.</p>
+ *
+ * <p>Each thumbnail has a URI with a private scheme by which it can be
+ * found again; this is what is supplied to the rendering of the output.
+ * The identifiers in the URIs are unique within the process so that a
+ * URI is never re-used for a different thumbnail.</p>
+ *
+ * <p>Space in the pack file is not reclaimed when a thumbnail is removed;
+ * the pack file is deleted when the store is closed.</p>
+ */
+
+public class ThumbnailStore implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ThumbnailStore.class);
+
+    public static final String URI_SCHEME = "photocat-thumbnail";
+
+    private static final AtomicLong NEXT_ID = new AtomicLong(1);
+
+    private static final int SLAB_BYTES = 4 * 1024 * 1024;
+
+    private final long memoryBudgetBytes;
+
+    private final int slabBytes;
+
+    private final Map<Long, Thumbnail> thumbnails = new ConcurrentHashMap<>();
+
+    private final List<Slab> slabs = new ArrayList<>();
+
+    /**
+     * <p>This is the slab into which thumbnails are currently being packed
+     * or NULL if there is none.</p>
+     */
+
+    private Slab currentSlab = null;
+
+    /**
+     * <p>This is set once a slab has not been able to be allocated.</p>
+     */
+
+    private boolean memoryExhausted = false;
+
+    private File packFile = null;
+
+    private FileChannel packChannel = null;
+
+    private long packLength = 0;
+
+    private boolean closed = false;
+
+    public ThumbnailStore(long memoryBudgetBytes) {
+        Preconditions.checkArgument(memoryBudgetBytes >= 0, "the memory budget must not be negative");
+        this.memoryBudgetBytes = memoryBudgetBytes;
+        this.slabBytes = (int) Math.min(SLAB_BYTES, memoryBudgetBytes);
+    }
+
+    /**
+     * <p>Stores the encoded thumbnail and returns a handle to it.</p>
+     */
+
+    public Thumbnail put(byte[] data) throws IOException {
+        Preconditions.checkArgument(null!=data, "the thumbnail data must be provided");
+
+        long id = NEXT_ID.getAndIncrement();
+        Thumbnail thumbnail;
+
+        synchronized (this) {
+            if (closed) {
+                throw new IOException("the thumbnail store has been closed");
+            }
+
+            Slab slab = findSlab(data.length);
+
+            if (null != slab) {
+                slab.buffer.put(slab.length, data);
+                thumbnail = new Thumbnail(id, data.length, slab, slab.length);
+                slab.length += data.length;
+                slab.liveBytes += data.length;
+            } else {
+                FileChannel channel = getPackChannel();
+                ByteBuffer buffer = ByteBuffer.wrap(data);
+                long position = packLength;
+
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer, position + buffer.position());
+                }
+
+                packLength += data.length;
+                thumbnail = new Thumbnail(id, data.length, null, position);
+            }
+
+            thumbnails.put(id, thumbnail);
+        }
+
+        return thumbnail;
+    }
+
+    /**
+     * <p>Returns a slab with space for the thumbnail or NULL if the
+     * thumbnail has to go to the pack file.  This is the current slab if
+     * it has space and otherwise is an empty slab or a newly allocated
+     * one.</p>
+     */
+
+    private Slab findSlab(int length) {
+        if (length > slabBytes) {
+            return null;
+        }
+
+        if (null != currentSlab && currentSlab.length + length <= slabBytes) {
+            return currentSlab;
+        }
+
+        for (Slab slab : slabs) {
+            if (0 == slab.liveBytes) {
+                slab.length = 0;
+                currentSlab = slab;
+                return slab;
+            }
+        }
+
+        if (memoryExhausted || (long) (slabs.size() + 1) * slabBytes > memoryBudgetBytes) {
+            return null;
+        }
+
+        try {
+            currentSlab = new Slab(ByteBuffer.allocateDirect(slabBytes));
+        } catch (OutOfMemoryError oome) {
+            LOGGER.warn("unable to allocate memory outside of the heap for thumbnails after {} bytes; "
+                    + "will keep further thumbnails in a file", (long) slabs.size() * slabBytes, oome);
+            memoryExhausted = true;
+            return null;
+        }
+
+        slabs.add(currentSlab);
+        return currentSlab;
+    }
+
+    private FileChannel getPackChannel() throws IOException {
+        if (null == packChannel) {
+            packFile = File.createTempFile("photocat-thumbnails-", ".pack");
+            packChannel = FileChannel.open(packFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            LOGGER.info("the thumbnail memory budget of {} bytes is used up; will keep further thumbnails in; {}",
+                    memoryBudgetBytes, packFile);
+        }
+
+        return packChannel;
+    }
+
+    /**
+     * <p>Returns the encoded data of the thumbnail.</p>
+     */
+
+    public byte[] read(Thumbnail thumbnail) throws IOException {
+        Preconditions.checkArgument(null!=thumbnail, "the thumbnail must be provided");
+
+        if (!thumbnails.containsKey(thumbnail.getId())) {
+            throw new IOException("the thumbnail is not in the store; " + thumbnail.getId());
+        }
+
+        byte[] result = new byte[thumbnail.getLength()];
+
+        if (null != thumbnail.slab) {
+
+            // the slab may be used again once the thumbnail is removed so it
+            // is checked again while the slab is not able to change.
+
+            synchronized (this) {
+                if (!thumbnails.containsKey(thumbnail.getId())) {
+                    throw new IOException("the thumbnail is not in the store; " + thumbnail.getId());
+                }
+
+                thumbnail.slab.buffer.get((int) thumbnail.position, result);
+            }
+        } else {
+            FileChannel channel;
+
+            synchronized (this) {
+                channel = packChannel;
+            }
+
+            if (null == channel) {
+                throw new IOException("the thumbnail store has been closed");
+            }
+
+            ByteBuffer buffer = ByteBuffer.wrap(result);
+
+            while (buffer.hasRemaining()) {
+                if (-1 == channel.read(buffer, thumbnail.position + buffer.position())) {
+                    throw new IOException("unexpected end of the pack file; " + packFile);
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * <p>Returns the thumbnail that has the URI or NULL if there is no such
+     * thumbnail in this store.</p>
+     */
+
+    public Thumbnail find(URI uri) {
+        Preconditions.checkArgument(null!=uri, "the uri must be provided");
+
+        if (!URI_SCHEME.equals(uri.getScheme())) {
+            return null;
+        }
+
+        try {
+            return thumbnails.get(Long.parseLong(uri.getSchemeSpecificPart()));
+        } catch (NumberFormatException nfe) {
+            return null;
+        }
+    }
+
+    /**
+     * <p>Removes the thumbnail from the store.  Once all of the thumbnails
+     * in a slab have been removed, the slab is available for later
+     * thumbnails.</p>
+     */
+
+    public void remove(Thumbnail thumbnail) {
+        Preconditions.checkArgument(null!=thumbnail, "the thumbnail must be provided");
+
+        if (null != thumbnails.remove(thumbnail.getId()) && null != thumbnail.slab) {
+            synchronized (this) {
+                thumbnail.slab.liveBytes -= thumbnail.getLength();
+            }
+        }
+    }
+
+    /**
+     * <p>Removes all of the thumbnails and deletes the pack file.</p>
+     */
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        thumbnails.clear();
+        slabs.clear();
+        currentSlab = null;
+
+        if (null != packChannel) {
+            Closeables.closeQuietly(packChannel);
+
+            if (!packFile.delete()) {
+                LOGGER.error("unable to delete the thumbnail pack file [{}]", packFile);
+            }
+
+            packChannel = null;
+        }
+    }
+
+    /**
+     * <p>This is a block of memory outside of the heap into which a number
+     * of thumbnails are packed.  It is guarded by the store.</p>
+     */
+
+    private static final class Slab {
+
+        private final ByteBuffer buffer;
+
+        /**
+         * <p>This is the quantity of bytes that have been packed into the
+         * slab since it was last empty.</p>
+         */
+
+        private int length = 0;
+
+        /**
+         * <p>This is the quantity of bytes of the thumbnails in the slab that
+         * have not been removed.</p>
+         */
+
+        private int liveBytes = 0;
+
+        private Slab(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+    }
+
+    /**
+     * <p>This is a handle to a thumbnail in the store.</p>
+     */
+
+    public static final class Thumbnail {
+
+        private final long id;
+
+        private final int length;
+
+        /**
+         * <p>This is NULL if the thumbnail is in the pack file.</p>
+         */
+
+        private final Slab slab;
+
+        /**
+         * <p>This is the position of the thumbnail in the slab or, if there
+         * is no slab, in the pack file.</p>
+         */
+
+        private final long position;
+
+        private Thumbnail(long id, int length, Slab slab, long position) {
+            this.id = id;
+            this.length = length;
+            this.slab = slab;
+            this.position = position;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        public URI getUri() {
+            return URI.create(URI_SCHEME + ":" + id);
+        }
+
+    }
+
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2016-2023, Andrew Lindesay. All Rights Reserved.
+ * Distributed under the terms of the MIT License.
+ *
+ * Authors:
+ *		Andrew Lindesay, apl@lindesay.co.nz
+ */
+
+package nz.co.silvereye.photocat;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * <p>This adds rows of an image together using the Vector API.  A vector
+ * of bytes is loaded and then converted into a number of vectors of
+ * floats of the same size which are multiplied by the weight and added
+ * onto the accumulator.  This class is only loaded if the incubator
+ * module is available; see {@link AreaAveragingScaler}.</p>
+ */
+
+final class VectorRowAccumulator implements AreaAveragingScaler.RowAccumulator {
+
+    private static final VectorSpecies<Byte> SPECIES_BYTE = ByteVector.SPECIES_PREFERRED;
+
+    private static final VectorSpecies<Float> SPECIES_FLOAT = FloatVector.SPECIES_PREFERRED;
+
+    private static final int PARTS = SPECIES_BYTE.length() / SPECIES_FLOAT.length();
+
+    @Override
+    public void accumulate(
+            byte[] source, int sourceOffset, float weight,
+            float[] accumulator, int accumulatorOffset, int length) {
+        FloatVector weightVector = FloatVector.broadcast(SPECIES_FLOAT, weight);
+        int upperBound = SPECIES_BYTE.loopBound(length);
+        int i = 0;
+
+        for (; i < upperBound; i += SPECIES_BYTE.length()) {
+            ByteVector bytes = ByteVector.fromArray(SPECIES_BYTE, source, sourceOffset + i);
+
+            for (int part = 0; part < PARTS; part++) {
+                int offset = accumulatorOffset + i + (part * SPECIES_FLOAT.length());
+                FloatVector samples = (FloatVector) bytes.convertShape(VectorOperators.B2F, SPECIES_FLOAT, part);
+
+                // the bytes are signed when they are converted so are corrected
+                // here to be unsigned.
+
+                samples = samples.add(256f, samples.lt(0f));
+                samples.fma(weightVector, FloatVector.fromArray(SPECIES_FLOAT, accumulator, offset))
+                        .intoArray(accumulator, offset);
+            }
+        }
+
+        for (; i < length; i++) {
+            accumulator[accumulatorOffset + i] += weight * (source[sourceOffset + i] & 0xFF);
+        }
+    }
+
+}
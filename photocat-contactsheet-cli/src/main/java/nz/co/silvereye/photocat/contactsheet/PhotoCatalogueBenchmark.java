@@ -0,0 +1,224 @@
+/*
+ * Copyright 2016-2023, Andrew Lindesay. All Rights Reserved.
+ * Distributed under the terms of the MIT License.
+ *
+ * Authors:
+ *		Andrew Lindesay, apl@lindesay.co.nz
+ */
+
+package nz.co.silvereye.photocat.contactsheet;
+
+import nz.co.silvereye.photocat.JobHelper;
+import nz.co.silvereye.photocat.JobSourceFile;
+import nz.co.silvereye.photocat.ScalingBackend;
+import nz.co.silvereye.photocat.ScalingQuality;
+import nz.co.silvereye.photocat.ThumbnailEncoder;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+import org.slf4j.bridge.SLF4JBridgeHandler;
+
+import java.io.File;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.logging.Handler;
+import java.util.logging.LogManager;
+
+/**
+ * <p>This tool will run the engine end-to-end over a directory of
+ * source files with an increasing quantity of threads and will report
+ * the throughput of each run.  It can be used to check that the
+ * thumbnailing is actually making use of the cores on the host.  The
+ * PDF is not rendered so that the timings are dominated by the image
+ * processing.</p>
+ */
+
+public class PhotoCatalogueBenchmark implements Runnable {
+
+    @Option(name = "-d", required = true, usage = "directory from which to obtain data")
+    private File sourceDirectory;
+
+    @Option(name = "-f", usage = "FFMPEG binary to run to process video data")
+    private File ffmpegBinary;
+
+    @Option(name = "-t", usage = "comma separated thread counts to benchmark (default 1,2,4,8 and the processor count)")
+    private String threadCounts;
+
+    @Option(name = "-m", usage = "minimum speedup of the largest thread count over the smallest; fail if not reached")
+    private Double minimumSpeedup;
+
+    @Option(name = "-sb", usage = "way to scale images; AREA_AVERAGING (default) or JAVA2D")
+    private ScalingBackend scalingBackend;
+
+    @Option(name = "-sq", usage = "trade-off when scaling images; QUALITY (default) or SPEED")
+    private ScalingQuality scalingQuality;
+
+    @Option(name = "-te", usage = "way to encode thumbnails; BASELINE (default) or IMAGEIO")
+    private ThumbnailEncoder thumbnailEncoder;
+
+    private static void syntax(String message) {
+        System.err.println(message);
+        System.err.print("java -cp <jarfile> " + PhotoCatalogueBenchmark.class.getName());
+        System.err.print(" [-f <ffmpegbinary>]");
+        System.err.print(" [-t <threadcount>,<threadcount>,...]");
+        System.err.print(" [-m <minimumspeedup>]");
+        System.err.print(" [-sb <scalingbackend>]");
+        System.err.print(" [-sq <scalingquality>]");
+        System.err.print(" [-te <thumbnailencoder>]");
+        System.err.print(" -d <inputdirectory>");
+        System.exit(1);
+    }
+
+    public static void main(String args[]) {
+
+        {
+            java.util.logging.Logger rootLogger = LogManager.getLogManager().getLogger("");
+
+            for(Handler handler : rootLogger.getHandlers())
+                rootLogger.removeHandler(handler);
+
+            SLF4JBridgeHandler.install();
+        }
+
+        PhotoCatalogueBenchmark main = new PhotoCatalogueBenchmark();
+        CmdLineParser parser = new CmdLineParser(main);
+
+        try {
+            parser.parseArgument(args);
+            main.run();
+        }
+        catch(CmdLineException cle) {
+            syntax(cle.getMessage());
+        }
+    }
+
+    private TreeSet<Integer> deriveThreadCounts() {
+        TreeSet<Integer> result = new TreeSet<>();
+
+        if(null==threadCounts) {
+            result.add(1);
+            result.add(2);
+            result.add(4);
+            result.add(8);
+            result.add(Runtime.getRuntime().availableProcessors());
+        }
+        else {
+            for(String threadCountS : threadCounts.split(",")) {
+                try {
+                    result.add(Integer.parseInt(threadCountS.trim()));
+                }
+                catch(NumberFormatException nfe) {
+                    syntax("bad thread count; " + threadCountS);
+                }
+            }
+        }
+
+        if(result.isEmpty() || result.first() <= 0) {
+            syntax("thread counts must be positive integers");
+        }
+
+        return result;
+    }
+
+    private Job createJob(int threadCount) {
+        Job job = new Job();
+
+        job.setSourceDirectory(sourceDirectory);
+        job.setThreadCount(threadCount);
+        job.setFoTransformUrlXsl(PhotoCatalogueBenchmark.class.getResource(Constants.RSRCPATH_DEFAULTXSLT));
+
+        if(null!=ffmpegBinary) {
+            job.setFfmpegBinary(ffmpegBinary);
+        }
+
+        if(null!=scalingBackend) {
+            job.setScalingBackend(scalingBackend);
+        }
+
+        if(null!=scalingQuality) {
+            job.setScalingQuality(scalingQuality);
+        }
+
+        if(null!=thumbnailEncoder) {
+            job.setThumbnailEncoder(thumbnailEncoder);
+        }
+
+        return job;
+    }
+
+    /**
+     * <p>Runs the job and returns the elapsed time in milliseconds.</p>
+     */
+
+    private long runJob(Job job, List<JobSourceFile> jobSourceFiles) {
+        job.addSourceFiles(jobSourceFiles);
+
+        long startMillis = System.currentTimeMillis();
+        new PhotoCatalogueEngine().run(job, null);
+        long elapsedMillis = System.currentTimeMillis() - startMillis;
+
+        if(job.isFailed()) {
+            throw new IllegalStateException("the benchmark job failed with " + job.getThreadCount() + " threads");
+        }
+
+        return elapsedMillis;
+    }
+
+    public void run() {
+
+        if(!sourceDirectory.exists() || !sourceDirectory.isDirectory()) {
+            syntax("source directory must exist");
+        }
+
+        TreeSet<Integer> threadCountsToRun = deriveThreadCounts();
+        int fileCount;
+
+        // a run at the largest thread count is made first so that the JIT and
+        // the file system caches are warm before anything is measured.
+
+        {
+            Job job = createJob(threadCountsToRun.last());
+            List<JobSourceFile> jobSourceFiles = JobHelper.assembleJobSourceFiles(job);
+            fileCount = jobSourceFiles.size();
+
+            if(0==fileCount) {
+                syntax("there are no source files in the source directory");
+            }
+
+            runJob(job, jobSourceFiles);
+        }
+
+        System.out.printf("%-8s %12s %12s %8s%n", "threads", "millis", "files/sec", "speedup");
+
+        // the speedup is relative to the smallest thread count benchmarked.
+
+        long baselineMillis = -1;
+        double largestSpeedup = 0.0;
+
+        for(int threadCount : threadCountsToRun) {
+            Job job = createJob(threadCount);
+            long elapsedMillis = Math.max(1, runJob(job, JobHelper.assembleJobSourceFiles(job)));
+
+            if(-1==baselineMillis) {
+                baselineMillis = elapsedMillis;
+            }
+
+            largestSpeedup = (double) baselineMillis / (double) elapsedMillis;
+
+            System.out.printf(
+                    "%-8d %12d %12.2f %8.2f%n",
+                    threadCount,
+                    elapsedMillis,
+                    (fileCount * 1000.0) / elapsedMillis,
+                    largestSpeedup);
+        }
+
+        if(null!=minimumSpeedup && largestSpeedup < minimumSpeedup) {
+            System.err.printf(
+                    "the speedup with %d threads was %.2f which is less than the minimum of %.2f%n",
+                    threadCountsToRun.last(), largestSpeedup, minimumSpeedup);
+            System.exit(1);
+        }
+    }
+
+}
@@ -8,7 +8,10 @@
 
 package nz.co.silvereye.photocat.contactsheet;
 
-import nz.co.silvereye.photocat.JobHelper;
+import nz.co.silvereye.photocat.ProcessingOrder;
+import nz.co.silvereye.photocat.ScalingBackend;
+import nz.co.silvereye.photocat.ScalingQuality;
+import nz.co.silvereye.photocat.ThumbnailEncoder;
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
@@ -17,6 +20,8 @@ import org.slf4j.LoggerFactory;
 import org.slf4j.bridge.SLF4JBridgeHandler;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.List;
 import java.util.logging.Handler;
 import java.util.logging.LogManager;
 
@@ -46,6 +51,66 @@ public class PhotoCatalogueCommandLine implements Runnable {
     @Option(name = "-t", usage = "thread count for processing data")
     private Integer threadCount;
 
+    @Option(name = "-tr", usage = "thread count for reading data to be processed")
+    private Integer readThreadCount;
+
+    @Option(name = "-tm", usage = "thread count for reading meta-data from the data")
+    private Integer metadataThreadCount;
+
+    @Option(name = "-mi", usage = "index file in which to keep meta-data between runs")
+    private File metadataIndexFile;
+
+    @Option(name = "-u", usage = "only thumbnail files with identical content once")
+    private boolean deduplicate;
+
+    @Option(name = "-i", usage = "glob of (relative) paths to include, or of names if it has no '/'; may be repeated")
+    private List<String> includeGlobs;
+
+    @Option(name = "-e", usage = "glob of (relative) paths to exclude, or of names if it has no '/'; may be repeated")
+    private List<String> excludeGlobs;
+
+    @Option(name = "-m", usage = "maximum depth of sub-directories to search for data")
+    private Integer maximumDepth;
+
+    @Option(name = "-po", usage = "order in which to process the data; LOCALITY (default) or CHRONOLOGICAL")
+    private ProcessingOrder processingOrder;
+
+    @Option(name = "-np", usage = "always decode the whole image rather than an embedded preview")
+    private boolean noEmbeddedPreview;
+
+    @Option(name = "-sb", usage = "way to scale images; AREA_AVERAGING (default) or JAVA2D")
+    private ScalingBackend scalingBackend;
+
+    @Option(name = "-sq", usage = "trade-off when scaling images; QUALITY (default) or SPEED")
+    private ScalingQuality scalingQuality;
+
+    @Option(name = "-te", usage = "way to encode thumbnails; BASELINE (default) or IMAGEIO")
+    private ThumbnailEncoder thumbnailEncoder;
+
+    @Option(name = "-ts", usage = "further maximum width or height in pixels at which to make thumbnails; may be repeated")
+    private List<Integer> additionalThumbnailSizes;
+
+    @Option(name = "-td", usage = "dots per inch at which to make thumbnails for the size at which the template places them")
+    private Integer thumbnailDotsPerInch;
+
+    @Option(name = "-mt", usage = "megabytes of memory in which to keep thumbnails before using a file")
+    private Integer thumbnailMemoryBudgetMegabytes;
+
+    @Option(name = "-md", usage = "megabytes of memory that images being decoded may use at once (default half the heap)")
+    private Integer decodeMemoryBudgetMegabytes;
+
+    @Option(name = "-c", usage = "directory in which to keep thumbnails between runs")
+    private File thumbnailCacheDirectory;
+
+    @Option(name = "-cm", usage = "maximum megabytes of thumbnails to keep between runs")
+    private Integer thumbnailCacheMaximumMegabytes;
+
+    @Option(name = "-w", usage = "keep running and update the output as the data changes")
+    private boolean watch;
+
+    @Option(name = "-wd", usage = "millis without changes to the data before the output is updated")
+    private Long watchDebounceMillis;
+
     private static void syntax(String message) {
         System.err.println(message);
         System.err.print("java -jar <jarfile>");
@@ -53,6 +118,24 @@ public class PhotoCatalogueCommandLine implements Runnable {
         System.err.print(" [-x <outxmlfile>]");
         System.err.print(" [-f <ffmpegbinary>]");
         System.err.print(" [-t <threadcount>]");
+        System.err.print(" [-tr <readthreadcount>]");
+        System.err.print(" [-tm <metadatathreadcount>]");
+        System.err.print(" [-mi <metadataindexfile>]");
+        System.err.print(" [-u]");
+        System.err.print(" [-i <includeglob>]");
+        System.err.print(" [-e <excludeglob>]");
+        System.err.print(" [-m <maximumdepth>]");
+        System.err.print(" [-po <processingorder>]");
+        System.err.print(" [-np]");
+        System.err.print(" [-sb <scalingbackend>]");
+        System.err.print(" [-sq <scalingquality>]");
+        System.err.print(" [-te <thumbnailencoder>]");
+        System.err.print(" [-ts <thumbnailsize>]");
+        System.err.print(" [-td <thumbnaildotsperinch>]");
+        System.err.print(" [-mt <thumbnailmemorymegabytes>]");
+        System.err.print(" [-md <decodememorymegabytes>]");
+        System.err.print(" [-c <thumbnailcachedirectory> [-cm <thumbnailcachemegabytes>]]");
+        System.err.print(" [-w [-wd <watchdebouncemillis>]]");
         System.err.print(" -d <inputdirectory>");
         System.exit(1);
     }
@@ -94,6 +177,9 @@ public class PhotoCatalogueCommandLine implements Runnable {
         job.setOutputFilePdf(outputPdfFile);
         job.setOutputFileXml(outputXmlFile);
         job.setSourceDirectory(sourceDirectory);
+        job.setMetadataIndexFile(metadataIndexFile);
+        job.setDeduplicate(deduplicate);
+        job.setEmbeddedPreviewUsed(!noEmbeddedPreview);
 
         if(null!=threadCount) {
             job.setThreadCount(threadCount);
@@ -103,16 +189,115 @@ public class PhotoCatalogueCommandLine implements Runnable {
             syntax("thread count must be a positive integer");
         }
 
+        if(null!=readThreadCount) {
+            if(readThreadCount <= 0) {
+                syntax("read thread count must be a positive integer");
+            }
+
+            job.setReadThreadCount(readThreadCount);
+        }
+
+        if(null!=metadataThreadCount) {
+            if(metadataThreadCount <= 0) {
+                syntax("meta-data thread count must be a positive integer");
+            }
+
+            job.setMetadataThreadCount(metadataThreadCount);
+        }
+
+        if(null!=includeGlobs) {
+            job.setIncludeGlobs(includeGlobs);
+        }
+
+        if(null!=excludeGlobs) {
+            job.setExcludeGlobs(excludeGlobs);
+        }
+
+        if(null!=maximumDepth) {
+            if(maximumDepth < 0) {
+                syntax("maximum depth must not be negative");
+            }
+
+            job.setMaximumDepth(maximumDepth);
+        }
+
+        if(null!=processingOrder) {
+            job.setProcessingOrder(processingOrder);
+        }
+
+        if(null!=scalingBackend) {
+            job.setScalingBackend(scalingBackend);
+        }
+
+        if(null!=scalingQuality) {
+            job.setScalingQuality(scalingQuality);
+        }
+
+        if(null!=thumbnailEncoder) {
+            job.setThumbnailEncoder(thumbnailEncoder);
+        }
+
+        if(null!=additionalThumbnailSizes) {
+            for(Integer additionalThumbnailSize : additionalThumbnailSizes) {
+                if(additionalThumbnailSize <= 0 || additionalThumbnailSize > Constants.MAXIMUM_MAXIMUMWIDTHORHEIGHTPIXELS) {
+                    syntax("thumbnail sizes must be from 1 to " + Constants.MAXIMUM_MAXIMUMWIDTHORHEIGHTPIXELS);
+                }
+            }
+
+            job.setAdditionalMaximumWidthOrHeightPixels(additionalThumbnailSizes);
+        }
+
+        if(null!=thumbnailDotsPerInch) {
+            if(thumbnailDotsPerInch <= 0) {
+                syntax("thumbnail dots per inch must be a positive integer");
+            }
+
+            job.setThumbnailDotsPerInch(thumbnailDotsPerInch);
+        }
+
+        if(null!=thumbnailMemoryBudgetMegabytes) {
+            if(thumbnailMemoryBudgetMegabytes < 0) {
+                syntax("thumbnail memory megabytes must not be negative");
+            }
+
+            job.setThumbnailMemoryBudgetBytes(thumbnailMemoryBudgetMegabytes * 1024L * 1024L);
+        }
+
+        if(null!=decodeMemoryBudgetMegabytes) {
+            if(decodeMemoryBudgetMegabytes <= 0) {
+                syntax("decode memory megabytes must be a positive integer");
+            }
+
+            job.setDecodeMemoryBudgetBytes(decodeMemoryBudgetMegabytes * 1024L * 1024L);
+        }
+
+        job.setThumbnailCacheDirectory(thumbnailCacheDirectory);
+
+        if(null!=thumbnailCacheMaximumMegabytes) {
+            if(thumbnailCacheMaximumMegabytes <= 0) {
+                syntax("thumbnail cache megabytes must be a positive integer");
+            }
+
+            job.setThumbnailCacheMaximumBytes(thumbnailCacheMaximumMegabytes * 1024L * 1024L);
+        }
+
         if(!job.getSourceDirectory().exists() || !job.getSourceDirectory().isDirectory()) {
             syntax("source directory must exist");
         }
 
-        // find the input files.
+        if(null!=watchDebounceMillis && watchDebounceMillis < 0) {
+            syntax("watch debounce millis must not be negative");
+        }
 
         job.setFoTransformUrlXsl(PhotoCatalogueCommandLine.class.getResource(Constants.RSRCPATH_DEFAULTXSLT));
-        job.addSourceFiles(JobHelper.assembleJobSourceFiles(job));
 
-        // now process it.
+        if(watch) {
+            watch(job);
+            return;
+        }
+
+        // now process it; the input files are found from the source
+        // directory as the job runs.
 
         PhotoCatalogueEngine pce = new PhotoCatalogueEngine();
 
@@ -124,4 +309,34 @@ public class PhotoCatalogueCommandLine implements Runnable {
         }
     }
 
+    /**
+     * <p>Runs the job and then keeps the output up to date as the data
+     * changes until the process is stopped.</p>
+     */
+
+    private void watch(Job job) {
+        try {
+            PhotoCatalogueWatcher watcher = new PhotoCatalogueWatcher(
+                    job,
+                    null == watchDebounceMillis ? PhotoCatalogueWatcher.DEFAULT_DEBOUNCE_MILLIS : watchDebounceMillis);
+
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    watcher.close();
+                }
+                catch(IOException ioe) {
+                    LOGGER.error("unable to stop watching", ioe);
+                }
+            }));
+
+            watcher.watch();
+        }
+        catch(IOException ioe) {
+            LOGGER.error("not able to watch the source directory", ioe);
+        }
+        catch(InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
 }
@@ -46,6 +46,13 @@ public class Job extends AbstractJob {
 
     private URL foTransformUrlXsl;
 
+    /**
+     * <p>If this is supplied then the maximum width or height of the
+     * thumbnails is worked out from the size at which the template places
+     * them on the page and this resolution in dots per inch.</p>
+     */
+
+    private Integer thumbnailDotsPerInch;
 
     public Job() {
         super();
@@ -64,6 +71,10 @@ public class Job extends AbstractJob {
         return foTransformUrlXsl;
     }
 
+    public Integer getThumbnailDotsPerInch() {
+        return thumbnailDotsPerInch;
+    }
+
     public void setOutputFilePdf(File value) {
         outputFilePdf = value;
     }
@@ -76,4 +87,8 @@ public class Job extends AbstractJob {
         foTransformUrlXsl = value;
     }
 
+    public void setThumbnailDotsPerInch(Integer value) {
+        thumbnailDotsPerInch = value;
+    }
+
 }
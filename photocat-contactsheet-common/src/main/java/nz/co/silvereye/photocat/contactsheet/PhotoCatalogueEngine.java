@@ -10,8 +10,12 @@ package nz.co.silvereye.photocat.contactsheet;
 
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
+import com.google.common.collect.Iterables;
 import nz.co.silvereye.photocat.*;
 import org.apache.fop.apps.*;
+import org.apache.fop.apps.io.ResourceResolverFactory;
+import org.apache.xmlgraphics.io.Resource;
+import org.apache.xmlgraphics.io.ResourceResolver;
 import org.jdom2.Element;
 import org.jdom2.output.XMLOutputter;
 import org.jdom2.transform.JDOMSource;
@@ -20,19 +24,22 @@ import org.slf4j.LoggerFactory;
 
 import javax.xml.transform.Result;
 import javax.xml.transform.Source;
+import javax.xml.transform.Templates;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.sax.SAXResult;
 import javax.xml.transform.stream.StreamSource;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.net.MalformedURLException;
+import java.io.*;
 import java.net.URI;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 /**
  * <p>This class is able to 'execute' a job.  This means;</p>
@@ -51,8 +58,41 @@ class PhotoCatalogueEngine {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(PhotoCatalogueEngine.class);
 
+    /**
+     * <p>This is the number of files for each thread that may be waiting to
+     * be thumbnailed before the discovery of further files is held back.</p>
+     */
+
+    private static final int IN_FLIGHT_PREPARATIONS_PER_THREAD = 8;
+
+    /**
+     * <p>While thumbnails are being prepared, the depths of the queues
+     * between the stages of preparation are logged this often.</p>
+     */
+
+    private static final long QUEUE_DEPTH_LOGGING_INTERVAL_MILLIS = 5000;
+
     private final DateFormat timestampFormat = new SimpleDateFormat(nz.co.silvereye.photocat.Constants.SIMPLEDATEFORMAT_SQL92_DATETIME);
 
+    /**
+     * <p>The compiled FO transform and the FOP factory are kept between runs
+     * so that an engine which is run repeatedly, such as when watching a
+     * directory, does not need to set these up each time.</p>
+     */
+
+    private URL foTransformTemplatesUrl = null;
+
+    private Templates foTransformTemplates = null;
+
+    private FopFactory fopFactory = null;
+
+    /**
+     * <p>This is the store of thumbnails for the job that is being rendered.
+     * The FOP factory obtains the thumbnails from it by their URIs.</p>
+     */
+
+    private volatile ThumbnailStore renderingThumbnailStore = null;
+
     public PhotoCatalogueEngine() {
         super();
     }
@@ -94,6 +134,216 @@ class PhotoCatalogueEngine {
     public synchronized void run(
             Job job,
             ProgressIndicatorInterface progressIndicator) {
+        run(job, null, false, progressIndicator);
+    }
+
+    /**
+     * <p>This runs the job but the thumbnails are kept afterwards so that
+     * the job can later be updated with {@link #update} without having to
+     * thumbnail all of the files again.  Once the job is no longer needed,
+     * {@link #cleanup} should be invoked to discard the thumbnails.</p>
+     */
+
+    public synchronized void runRetainingThumbnails(
+            Job job,
+            ProgressIndicatorInterface progressIndicator) {
+        run(job, null, true, progressIndicator);
+    }
+
+    /**
+     * <p>This method will bring a job that has been run with
+     * {@link #runRetainingThumbnails} up to date with files that have been
+     * added, changed or removed since and will then render the output
+     * again.  Only the files that have been added or changed are
+     * thumbnailed.</p>
+     */
+
+    public synchronized void update(
+            Job job,
+            Collection<File> addedOrChangedFiles,
+            Collection<File> removedFiles,
+            ProgressIndicatorInterface progressIndicator) {
+
+        Preconditions.checkNotNull(job);
+        Preconditions.checkNotNull(addedOrChangedFiles);
+        Preconditions.checkNotNull(removedFiles);
+
+        Map<File, JobSourceFile> jobSourceFilesByFile = new HashMap<>();
+
+        for (JobSourceFile jsf : job.getSourceFiles()) {
+            jobSourceFilesByFile.put(jsf.getFile(), jsf);
+        }
+
+        List<JobSourceFile> outdatedJobSourceFiles = new ArrayList<>();
+
+        for (File file : Iterables.concat(removedFiles, addedOrChangedFiles)) {
+            JobSourceFile jsf = jobSourceFilesByFile.remove(file);
+
+            if (null != jsf) {
+                outdatedJobSourceFiles.add(jsf);
+            }
+        }
+
+        removeSourceFiles(job, outdatedJobSourceFiles);
+
+        List<JobSourceFile> addedJobSourceFiles = new ArrayList<>();
+
+        for (File file : addedOrChangedFiles) {
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+                JobSourceFile jsf = JobHelper.createJobSourceFile(job, file, attributes);
+
+                if (null != jsf) {
+                    job.addSourceFile(jsf);
+                    addedJobSourceFiles.add(jsf);
+                }
+            } catch (IOException ioe) {
+                LOGGER.warn("unable to read the attributes of; {}", file, ioe);
+            }
+        }
+
+        LOGGER.info("updating the job; {} files removed or replaced, {} files added or changed",
+                outdatedJobSourceFiles.size(), addedJobSourceFiles.size());
+
+        job.resetRunState();
+        run(job, addedJobSourceFiles, true, progressIndicator);
+    }
+
+    /**
+     * <p>Discards the thumbnails that have been retained for the job.</p>
+     */
+
+    public synchronized void cleanup(Job job) {
+        Preconditions.checkNotNull(job);
+        discardThumbnails(job);
+    }
+
+    /**
+     * <p>Removes the source files from the job and removes their thumbnails
+     * from the job's thumbnail store where the thumbnail is not being shared
+     * with another file that remains in the job.</p>
+     */
+
+    private void removeSourceFiles(Job job, Collection<JobSourceFile> jobSourceFiles) {
+        for (JobSourceFile jsf : jobSourceFiles) {
+            job.removeSourceFile(jsf);
+        }
+
+        Set<ThumbnailStore.Thumbnail> retainedThumbnails = new HashSet<>();
+
+        for (JobSourceFile jsf : job.getSourceFiles()) {
+            retainedThumbnails.addAll(jsf.getThumbnails().values());
+        }
+
+        ThumbnailStore thumbnailStore = job.getThumbnailStore();
+
+        for (JobSourceFile jsf : jobSourceFiles) {
+            for (ThumbnailStore.Thumbnail thumbnail : jsf.getThumbnails().values()) {
+                if (!retainedThumbnails.contains(thumbnail)) {
+                    thumbnailStore.remove(thumbnail);
+                }
+            }
+
+            jsf.setThumbnails(null);
+        }
+    }
+
+    private void discardThumbnails(Job job) {
+        for (JobSourceFile jsf : job.getSourceFiles()) {
+            jsf.setThumbnails(null);
+        }
+
+        job.closeThumbnailStore();
+    }
+
+    /**
+     * <p>Sets the maximum width or height of the thumbnails from the size at
+     * which the template places them on the page so that thumbnails have
+     * no more pixels than are shown at the job's resolution.  If the
+     * template does not say what size this is then the job's size is kept.
+     * </p>
+     */
+
+    private void sizeThumbnailsFromTemplate(Job job) throws IOException {
+        Double inches = TemplateThumbnailSize.readInches(job.getFoTransformUrlXsl());
+
+        if (null == inches) {
+            LOGGER.warn("the template does not declare the '{}' variable; thumbnails will be {}px",
+                    TemplateThumbnailSize.VARIABLE_NAME, job.getMaximumWidthOrHeightPixels());
+            return;
+        }
+
+        int pixels = TemplateThumbnailSize.toPixels(inches, job.getThumbnailDotsPerInch());
+
+        if (pixels != job.getMaximumWidthOrHeightPixels()) {
+            LOGGER.info("thumbnails placed at {}in and {}dpi will be {}px",
+                    String.format("%.2f", inches), job.getThumbnailDotsPerInch(), pixels);
+            job.setMaximumWidthOrHeightPixels(pixels);
+        }
+    }
+
+    private Templates getFoTransformTemplates(URL url) throws Exception {
+        if (null == foTransformTemplates || !url.equals(foTransformTemplatesUrl)) {
+            try (InputStream transformXslIs = url.openStream()) {
+                foTransformTemplates = TransformerFactory.newInstance().newTemplates(new StreamSource(transformXslIs));
+                foTransformTemplatesUrl = url;
+            }
+        }
+
+        return foTransformTemplates;
+    }
+
+    /**
+     * <p>The FOP factory resolves the URIs of thumbnails from the store of
+     * thumbnails for the job being rendered; other URIs are resolved as
+     * normal.</p>
+     */
+
+    private FopFactory getFopFactory() throws Exception {
+        if (null == fopFactory) {
+            ResourceResolverFactory.SchemeAwareResourceResolverBuilder resourceResolverBuilder =
+                    ResourceResolverFactory.createSchemeAwareResourceResolverBuilder(
+                            ResourceResolverFactory.createDefaultResourceResolver());
+            resourceResolverBuilder.registerResourceResolverForScheme(
+                    ThumbnailStore.URI_SCHEME, new ThumbnailResourceResolver());
+            fopFactory = new FopFactoryBuilder(new URI("."), resourceResolverBuilder.build()).build();
+        }
+
+        return fopFactory;
+    }
+
+    private class ThumbnailResourceResolver implements ResourceResolver {
+
+        @Override
+        public Resource getResource(URI uri) throws IOException {
+            ThumbnailStore thumbnailStore = renderingThumbnailStore;
+            ThumbnailStore.Thumbnail thumbnail = null == thumbnailStore ? null : thumbnailStore.find(uri);
+
+            if (null == thumbnail) {
+                throw new FileNotFoundException("unable to find the thumbnail; " + uri);
+            }
+
+            return new Resource(new ByteArrayInputStream(thumbnailStore.read(thumbnail)));
+        }
+
+        @Override
+        public OutputStream getOutputStream(URI uri) throws IOException {
+            throw new IOException("thumbnails are not able to be written; " + uri);
+        }
+
+    }
+
+    /**
+     * <p>If the job source files to prepare are supplied then only those
+     * files are thumbnailed; the thumbnails for the other files in the job
+     * are assumed to be there already.</p>
+     */
+
+    private void run(
+            Job job,
+            Collection<JobSourceFile> jobSourceFilesToPrepare,
+            boolean retainThumbnails,
+            ProgressIndicatorInterface progressIndicator) {
 
         Preconditions.checkNotNull(job);
 
@@ -123,16 +373,17 @@ class PhotoCatalogueEngine {
                     throw new Exception("the FO transform has not been configured.");
                 }
 
-                if (job.getSourceFiles().isEmpty()) {
+                if (job.getSourceFiles().isEmpty() && null == job.getSourceDirectory()) {
                     throw new Exception("there are no files supplied to render the page for.");
                 }
+
+                if (null != job.getThumbnailDotsPerInch()) {
+                    sizeThumbnailsFromTemplate(job);
+                }
             }
 
             phasedProgress.nextPhase();
 
-            BlockingQueue<Runnable> jobSourceFilePreparationQueue = null;
-            ThreadPoolExecutor jobSourceFilePreparationExecutor = null;
-
             try {
                 if (job.isRunning()) {
                     job.setPercentage(phasedProgress.absolutePercentage());
@@ -142,65 +393,17 @@ class PhotoCatalogueEngine {
                         progressIndicator.updateProgress();
                     }
 
-                    jobSourceFilePreparationQueue = new ArrayBlockingQueue<>(job.getSourceFiles().size());
-
-                    jobSourceFilePreparationExecutor = new ThreadPoolExecutor(
-                            0,
-                            job.getThreadCount(),
-                            5,
-                            TimeUnit.SECONDS,
-                            jobSourceFilePreparationQueue,
-                            Executors.defaultThreadFactory(),
-                            new ThreadPoolExecutor.CallerRunsPolicy());
-
                     // the first step is to generate all of the necessary thumb-nails
 
-                    LOGGER.info("thumbnailing the {} files",job.getSourceFiles().size());
+                    prepareThumbnails(job, jobSourceFilesToPrepare, phasedProgress, progressIndicator);
 
-                    {
-                        List<Future<?>> futures = new ArrayList<>();
-                        int countDone = 0;
+                    // meta-data and content hashes obtained while preparing the
+                    // thumbnails can now be kept in the meta-data index.
 
-                        for (JobSourceFile jsf : job.getSourceFiles()) {
-                            futures.add(jobSourceFilePreparationExecutor.submit(new JobSourceFilePreparation(jsf)));
-                        }
+                    JobHelper.indexJobSourceFiles(job, job.getSourceFiles());
 
-                        Iterator<Future<?>> futuresI = futures.iterator();
-
-                        while (
-                                !job.isCancelled() &&
-                                        futuresI.hasNext()) {
-                            Future<?> future = futuresI.next();
-                            boolean done = false;
-
-                            while (!done && job.isRunning()) {
-                                try {
-                                    future.get();
-                                    done = true;
-                                } catch (InterruptedException ie) { /* ignore */ } catch (ExecutionException ee) // something went wrong when processing the image
-                                {
-                                    LOGGER.error("a problem has arisen in preparing an image", ee);
-                                }
-                            }
-
-                            countDone++;
-                            phasedProgress.setPercentageInPhase((countDone * 100) / futures.size());
-
-                            job.setPercentage(phasedProgress.absolutePercentage());
-                            job.setMessage(getLocalizedStringForKey(Constants.KEY_L_STATUSIMAGEPROCESSING));
-
-                            if (null != progressIndicator)
-                                progressIndicator.updateProgress();
-
-                        }
-
-                        // If the user did cancel then the rest of the processing can just be
-                        // aborted.
-
-                        if (job.isCancelled()) {
-                            jobSourceFilePreparationExecutor.shutdownNow();
-                            LOGGER.info("have shutdown the executor that is processing image and video data as the user has opted to cancel.");
-                        }
+                    if (job.isRunning() && job.getSourceFiles().isEmpty()) {
+                        throw new Exception("there are no files supplied to render the page for.");
                     }
                 }
 
@@ -267,17 +470,16 @@ class PhotoCatalogueEngine {
 
                     FileOutputStream os = new FileOutputStream(job.getOutputFilePdf());
 
-                    InputStream transformXslIs = null;
-                    FopFactory fopFactory = new FopFactoryBuilder(new URI(".")).build();
+                    FopFactory fopFactory = getFopFactory();
                     FOUserAgent foUserAgent = fopFactory.newFOUserAgent();
 
+                    renderingThumbnailStore = job.getThumbnailStore();
+
                     try {
-                        transformXslIs = job.getFoTransformUrlXsl().openStream();
                         Fop fop = fopFactory.newFop(MimeConstants.MIME_PDF, foUserAgent, os);
 
-                        // Setup XSLT
-                        TransformerFactory factory = TransformerFactory.newInstance();
-                        Transformer transformer = factory.newTransformer(new StreamSource(transformXslIs));
+                        // Setup XSLT; the transform is compiled once and re-used
+                        Transformer transformer = getFoTransformTemplates(job.getFoTransformUrlXsl()).newTransformer();
 
                         // Setup input for XSLT transformation
                         Source src = new JDOMSource(d);
@@ -290,10 +492,9 @@ class PhotoCatalogueEngine {
                     } catch (Exception e) {
                         throw new Error("an error has arisen converting the XML data from the files through FOP into PDF.", e);
                     } finally {
-                        Closeables.closeQuietly(transformXslIs);
+                        renderingThumbnailStore = null;
+                        os.close();
                     }
-
-                    os.close();
                 }
             } catch (Throwable th) {
                 LOGGER.error("a failure has arisen processing the job", th);
@@ -310,25 +511,12 @@ class PhotoCatalogueEngine {
                 if (null != progressIndicator)
                     progressIndicator.updateProgress();
 
-                // we need to clean-up afterwards and delete any temporary files which were
+                // we need to clean-up afterwards and discard the thumbnails which were
                 // created as a part of generating the output.
 
-                for (JobSourceFile jsf : job.getSourceFiles()) {
-                    if (null != jsf.getThumbnailFile())
-                        if (!jsf.getThumbnailFile().delete()) {
-                            LOGGER.error("unable to delete file [{}]", jsf.getThumbnailFile());
-                        }
-                }
-
-                // shutdown the executor.
-
-                if (null != jobSourceFilePreparationExecutor) {
-                    jobSourceFilePreparationExecutor.shutdown();
-                    jobSourceFilePreparationExecutor = null;
+                if (!retainThumbnails) {
+                    discardThumbnails(job);
                 }
-
-                if (null != jobSourceFilePreparationQueue)
-                    jobSourceFilePreparationQueue = null;
             }
         } catch (Throwable th) // catch all for the engine.
         {
@@ -351,6 +539,224 @@ class PhotoCatalogueEngine {
         }
     }
 
+    /**
+     * <p>This method will produce the thumbnails for the job's source files.
+     * If the job has not been supplied with source files then they are
+     * discovered from the job's source directory and each file is handed
+     * over to be thumbnailed as soon as it is discovered so that the
+     * discovery and the thumbnailing overlap.  Only a limited number of
+     * files are allowed to be waiting for a thumbnail at any one time so
+     * that the discovery is held back if the thumbnailing is not able to
+     * keep up.</p>
+     *
+     * <p>The cost of thumbnailing each file is estimated before it is
+     * handed over and the most expensive waiting files are started first
+     * so that the job does not end up waiting on one large file once the
+     * others are done.  Supplied files are all estimated up front and are
+     * handed over most expensive first.  Costs are compared by their
+     * power of two so that files of a similar cost stay in the processing
+     * order.</p>
+     *
+     * <p>The thumbnails are prepared in a {@link JobSourceFilePreparationPipeline}
+     * which has a stage for each of reading, decoding, scaling and encoding.
+     * </p>
+     */
+
+    private void prepareThumbnails(
+            Job job,
+            Collection<JobSourceFile> jobSourceFilesToPrepare,
+            PhasedProgress phasedProgress,
+            ProgressIndicatorInterface progressIndicator) throws Exception {
+
+        boolean discover = null == jobSourceFilesToPrepare && job.getSourceFiles().isEmpty();
+        List<JobSourceFile> suppliedJobSourceFiles = job.getProcessingOrder().sort(
+                null == jobSourceFilesToPrepare ? job.getSourceFiles() : jobSourceFilesToPrepare);
+        Semaphore inFlightPermits = new Semaphore(job.getThreadCount() * IN_FLIGHT_PREPARATIONS_PER_THREAD);
+        AtomicInteger countSubmitted = new AtomicInteger(0);
+        ExecutorService discoveryExecutor = Executors.newSingleThreadExecutor();
+        BlockingQueue<Future<JobSourceFile>> completedPreparations = new LinkedBlockingQueue<>();
+        Map<JobSourceFile, Long> estimatedCosts = new ConcurrentHashMap<>();
+
+        // when de-duplicating, the first file with a given content hash is
+        // thumbnailed and any later files with the same hash will share the
+        // thumbnail once it has been made.
+
+        Map<String, JobSourceFile> primaryJobSourceFilesByHash = new ConcurrentHashMap<>();
+        Queue<JobSourceFile> duplicateJobSourceFiles = new ConcurrentLinkedQueue<>();
+
+        // files already in the job that have a thumbnail can share it with
+        // the files that are being prepared.
+
+        if (null != jobSourceFilesToPrepare && job.isDeduplicate()) {
+            for (JobSourceFile jsf : job.getSourceFiles()) {
+                if (null != jsf.getContentHash() && null != jsf.getThumbnail()) {
+                    primaryJobSourceFilesByHash.putIfAbsent(jsf.getContentHash(), jsf);
+                }
+            }
+        }
+
+        // files that were not hashed when they were found are hashed as they
+        // are read in the pipeline and are checked for duplicates then.
+
+        AtomicInteger countReadDuplicates = new AtomicInteger(0);
+
+        JobSourceFilePreparationPipeline pipeline = new JobSourceFilePreparationPipeline(job, jsf -> {
+            if (!job.isDeduplicate() || null == jsf.getContentHash()) {
+                return true;
+            }
+
+            JobSourceFile primaryJsf = primaryJobSourceFilesByHash.putIfAbsent(jsf.getContentHash(), jsf);
+
+            if (null == primaryJsf || primaryJsf == jsf) {
+                return true;
+            }
+
+            duplicateJobSourceFiles.add(jsf);
+            countReadDuplicates.incrementAndGet();
+            return false;
+        });
+
+        Consumer<JobSourceFile> submitter = jsf -> {
+            if (job.isDeduplicate() && null != jsf.getContentHash()) {
+                if (null != primaryJobSourceFilesByHash.putIfAbsent(jsf.getContentHash(), jsf)) {
+                    if (discover) {
+                        job.addSourceFile(jsf);
+                    }
+
+                    duplicateJobSourceFiles.add(jsf);
+                    return;
+                }
+            }
+
+            try {
+                while (!inFlightPermits.tryAcquire(250, TimeUnit.MILLISECONDS)) {
+                    if (!job.isRunning()) {
+                        throw new CancellationException("the job is no longer running");
+                    }
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new CancellationException("interrupted waiting to submit a file for preparation");
+            }
+
+            if (discover) {
+                job.addSourceFile(jsf);
+            }
+
+            JobSourceFilePreparation preparation = new JobSourceFilePreparation(jsf);
+            Long estimatedCost = estimatedCosts.remove(jsf);
+
+            countSubmitted.incrementAndGet();
+
+            CompletableFuture<JobSourceFile> future = pipeline.submit(
+                    preparation, null == estimatedCost ? preparation.estimateCost() : estimatedCost);
+
+            future.whenComplete((r, th) -> {
+                inFlightPermits.release();
+                completedPreparations.add(future);
+            });
+        };
+
+        try {
+            if (discover) {
+                LOGGER.info("discovering and thumbnailing the files from; {}", job.getSourceDirectory());
+            } else {
+                LOGGER.info("thumbnailing the {} files in {} order", suppliedJobSourceFiles.size(), job.getProcessingOrder());
+            }
+
+            Future<?> discoveryFuture = discoveryExecutor.submit(() -> {
+                if (discover) {
+                    JobHelper.assembleJobSourceFiles(job, true, submitter);
+                } else {
+                    for (JobSourceFile jsf : suppliedJobSourceFiles) {
+                        estimatedCosts.put(jsf, new JobSourceFilePreparation(jsf).estimateCost());
+                    }
+
+                    List<JobSourceFile> costOrderedJobSourceFiles = new ArrayList<>(suppliedJobSourceFiles);
+                    costOrderedJobSourceFiles.sort(Comparator.comparingInt(
+                            (JobSourceFile jsf) -> JobSourceFilePreparationPipeline.costBucket(estimatedCosts.get(jsf))).reversed());
+                    costOrderedJobSourceFiles.forEach(submitter);
+                }
+            });
+
+            int countDone = 0;
+            int percentageInPhase = 0;
+            long queueDepthsLoggedMillis = System.currentTimeMillis();
+
+            while (job.isRunning()) {
+
+                if (System.currentTimeMillis() - queueDepthsLoggedMillis > QUEUE_DEPTH_LOGGING_INTERVAL_MILLIS) {
+                    LOGGER.info("preparation queue depths; {}", pipeline.describeQueueDepths());
+                    queueDepthsLoggedMillis = System.currentTimeMillis();
+                }
+
+                // it is important to check that the discovery is done before
+                // checking the count submitted because the count submitted is
+                // only final after discovery is done.
+
+                if (discoveryFuture.isDone() && countDone == countSubmitted.get()) {
+                    discoveryFuture.get(); // surface any problem in the discovery
+                    break;
+                }
+
+                Future<JobSourceFile> future = completedPreparations.poll(250, TimeUnit.MILLISECONDS);
+
+                if (null != future) {
+                    try {
+                        future.get();
+                    } catch (ExecutionException ee) // something went wrong when processing the image
+                    {
+                        LOGGER.error("a problem has arisen in preparing an image", ee);
+                    }
+
+                    countDone++;
+
+                    // the quantity of files is not known until the discovery is
+                    // complete so the percentage is not allowed to go backwards.
+
+                    percentageInPhase = Math.max(percentageInPhase, (countDone * 100) / countSubmitted.get());
+                    phasedProgress.setPercentageInPhase(percentageInPhase);
+
+                    job.setPercentage(phasedProgress.absolutePercentage());
+                    job.setMessage(getLocalizedStringForKey(Constants.KEY_L_STATUSIMAGEPROCESSING));
+
+                    if (null != progressIndicator)
+                        progressIndicator.updateProgress();
+                }
+            }
+
+            for (JobSourceFile duplicateJsf : duplicateJobSourceFiles) {
+                duplicateJsf.setThumbnails(
+                        primaryJobSourceFilesByHash.get(duplicateJsf.getContentHash()).getThumbnails());
+            }
+
+            LOGGER.info("thumbnailed {} files and shared thumbnails with {} identical files",
+                    countDone - countReadDuplicates.get(), duplicateJobSourceFiles.size());
+            LOGGER.info("maximum preparation queue depths; {}", pipeline.describeMaximumQueueDepths());
+
+            if (null != job.getThumbnailCache()) {
+                LOGGER.info("thumbnail cache; {} hits and {} misses",
+                        job.getThumbnailCache().getCountHits(), job.getThumbnailCache().getCountMisses());
+            }
+        } finally {
+            discoveryExecutor.shutdownNow();
+
+            // If the user did cancel then the rest of the processing can just be
+            // aborted.
+
+            if (job.isCancelled()) {
+                LOGGER.info("will shutdown the stages that are processing image and video data as the user has opted to cancel.");
+            }
+
+            // wait for any preparation still running so that its thumbnail is
+            // there to be cleaned up.
+
+            if (!pipeline.shutdown(!job.isCancelled(), 1, TimeUnit.MINUTES)) {
+                LOGGER.warn("timed out waiting for the preparation of images to stop");
+            }
+        }
+    }
+
     // ----------------------------------------------
     // DOM-HANDLING
     // ----------------------------------------------
@@ -433,15 +839,14 @@ class PhotoCatalogueEngine {
                 fileContainerE.addContent(descriptionE);
             }
 
-            if (null != jsf.getThumbnailFile()) {
-                Element thumbnailE = new Element("thumbnailurl");
-
-                try {
-                    thumbnailE.addContent(jsf.getThumbnailFile().toURI().toURL().toExternalForm());
-                } catch (MalformedURLException mue) {
-                    throw new IllegalStateException("an error has occurred converting a java file into a URL", mue);
-                }
+            // the thumbnail at the job's maximum width or height comes first
+            // so that it is the one that a template which ignores the size
+            // uses.
 
+            for (Map.Entry<Integer, ThumbnailStore.Thumbnail> thumbnailEntry : jsf.getThumbnails().entrySet()) {
+                Element thumbnailE = new Element("thumbnailurl");
+                thumbnailE.setAttribute("size", Integer.toString(thumbnailEntry.getKey()));
+                thumbnailE.addContent(thumbnailEntry.getValue().getUri().toString());
                 fileContainerE.addContent(thumbnailE);
             }
 
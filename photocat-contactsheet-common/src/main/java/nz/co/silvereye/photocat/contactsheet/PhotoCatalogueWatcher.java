@@ -0,0 +1,253 @@
+/*
+ * Copyright 2016-2023, Andrew Lindesay. All Rights Reserved.
+ * Distributed under the terms of the MIT License.
+ *
+ * Authors:
+ *		Andrew Lindesay, apl@lindesay.co.nz
+ */
+
+package nz.co.silvereye.photocat.contactsheet;
+
+import com.google.common.base.Preconditions;
+import nz.co.silvereye.photocat.DirectoryTraversal;
+import nz.co.silvereye.photocat.JobHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>This class keeps the output of a job up to date with the source
+ * directory.  The job is run once and then the source directory is
+ * watched for files that are added, changed or removed.  Once the
+ * changes have stopped for the debounce period, only the files that
+ * have changed are processed and the output is rendered again.  The
+ * engine, and the thumbnails of the files that have not changed, are
+ * kept in memory between updates.</p>
+ *
+ * <p>The size and the modification time of each file are recorded so
+ * that files which have been touched but have not changed are not
+ * processed again.</p>
+ */
+
+class PhotoCatalogueWatcher implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PhotoCatalogueWatcher.class);
+
+    public static final long DEFAULT_DEBOUNCE_MILLIS = 2000;
+
+    private final Job job;
+
+    private final long debounceMillis;
+
+    private final Path rootDirectory;
+
+    private final DirectoryTraversal directoryTraversal;
+
+    private final PhotoCatalogueEngine engine = new PhotoCatalogueEngine();
+
+    private final WatchService watchService;
+
+    private final Map<WatchKey, Path> watchedDirectories = new ConcurrentHashMap<>();
+
+    /**
+     * <p>This is the state of each file as it was when it was last
+     * processed.</p>
+     */
+
+    private final Map<Path, FileState> fileStates = new HashMap<>();
+
+    public PhotoCatalogueWatcher(Job job, long debounceMillis) throws IOException {
+        Preconditions.checkArgument(null!=job, "the job must be provided");
+        Preconditions.checkArgument(null!=job.getSourceDirectory(), "the job must have a source directory");
+        Preconditions.checkArgument(debounceMillis >= 0, "the debounce period must not be negative");
+
+        this.job = job;
+        this.debounceMillis = debounceMillis;
+        this.rootDirectory = job.getSourceDirectory().toPath();
+        this.directoryTraversal = new DirectoryTraversal(job);
+        this.watchService = rootDirectory.getFileSystem().newWatchService();
+    }
+
+    /**
+     * <p>Runs the job and then keeps the output up to date until this
+     * watcher is closed or the thread is interrupted.</p>
+     */
+
+    public void watch() throws InterruptedException {
+
+        // the directories are registered before the job is first run so that
+        // any change made while the job is running is picked up afterwards.
+
+        fileStates.putAll(scan(rootDirectory));
+        engine.runRetainingThumbnails(job, null);
+
+        LOGGER.info("watching for changes; {}", rootDirectory);
+
+        try {
+            while (true) {
+                Set<Path> dirtyPaths = new HashSet<>();
+                collectDirtyPaths(watchService.take(), dirtyPaths);
+
+                WatchKey watchKey;
+
+                while (null != (watchKey = watchService.poll(debounceMillis, TimeUnit.MILLISECONDS))) {
+                    collectDirtyPaths(watchKey, dirtyPaths);
+                }
+
+                processDirtyPaths(dirtyPaths);
+            }
+        } catch (ClosedWatchServiceException cwse) {
+            LOGGER.info("stopped watching for changes; {}", rootDirectory);
+        }
+    }
+
+    /**
+     * <p>Stops watching and deletes the thumbnails that were retained.</p>
+     */
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+        engine.cleanup(job);
+    }
+
+    private void collectDirtyPaths(WatchKey watchKey, Set<Path> dirtyPaths) {
+        Path directory = watchedDirectories.get(watchKey);
+
+        for (WatchEvent<?> event : watchKey.pollEvents()) {
+
+            // if events have been lost then the whole tree has to be checked.
+
+            if (StandardWatchEventKinds.OVERFLOW == event.kind()) {
+                LOGGER.warn("change events have been lost; will check all of the files");
+                dirtyPaths.add(rootDirectory);
+            } else if (null != directory) {
+                dirtyPaths.add(directory.resolve((Path) event.context()));
+            }
+        }
+
+        if (!watchKey.reset()) {
+            watchedDirectories.remove(watchKey);
+        }
+    }
+
+    /**
+     * <p>Works out which files have been added, changed or removed at or
+     * under the dirty paths and then updates the job with those.</p>
+     */
+
+    private void processDirtyPaths(Set<Path> dirtyPaths) {
+        Map<Path, FileState> currentFileStates = new HashMap<>();
+
+        for (Path dirtyPath : dirtyPaths) {
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(dirtyPath, BasicFileAttributes.class);
+
+                if (attributes.isDirectory()) {
+                    if (directoryTraversal.acceptsDirectory(dirtyPath)) {
+                        currentFileStates.putAll(scan(dirtyPath));
+                    }
+                } else {
+                    if (attributes.isRegularFile() && isCatalogued(dirtyPath)) {
+                        currentFileStates.put(dirtyPath, new FileState(attributes));
+                    }
+                }
+            } catch (NoSuchFileException nsfe) {
+                // the path has been removed; this is picked up below.
+            } catch (IOException ioe) {
+                LOGGER.warn("unable to read the attributes of; {}", dirtyPath, ioe);
+            }
+        }
+
+        List<File> removedFiles = new ArrayList<>();
+
+        for (Iterator<Path> pathIterator = fileStates.keySet().iterator(); pathIterator.hasNext(); ) {
+            Path path = pathIterator.next();
+
+            if (!currentFileStates.containsKey(path) && isAtOrUnderAny(path, dirtyPaths)) {
+                removedFiles.add(path.toFile());
+                pathIterator.remove();
+            }
+        }
+
+        List<File> addedOrChangedFiles = new ArrayList<>();
+
+        for (Map.Entry<Path, FileState> entry : currentFileStates.entrySet()) {
+            if (!entry.getValue().equals(fileStates.put(entry.getKey(), entry.getValue()))) {
+                addedOrChangedFiles.add(entry.getKey().toFile());
+            }
+        }
+
+        if (!addedOrChangedFiles.isEmpty() || !removedFiles.isEmpty()) {
+            LOGGER.info("have found {} files added or changed and {} files removed",
+                    addedOrChangedFiles.size(), removedFiles.size());
+            engine.update(job, addedOrChangedFiles, removedFiles, null);
+        }
+    }
+
+    private static boolean isAtOrUnderAny(Path path, Set<Path> directories) {
+        for (Path directory : directories) {
+            if (path.startsWith(directory)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private boolean isCatalogued(Path file) {
+        return directoryTraversal.accepts(file)
+                && JobHelper.DataType.UNKNOWN != JobHelper.deriveDataType(file.toFile());
+    }
+
+    /**
+     * <p>Walks the directory, watching each directory found, and returns
+     * the state of the files in it that would be catalogued.</p>
+     */
+
+    private Map<Path, FileState> scan(Path directory) {
+        Map<Path, FileState> result = new ConcurrentHashMap<>();
+
+        directoryTraversal.traverse(
+                directory,
+                this::register,
+                (path, attributes) -> {
+                    if (JobHelper.DataType.UNKNOWN != JobHelper.deriveDataType(path.toFile())) {
+                        result.put(path, new FileState(attributes));
+                    }
+                });
+
+        return result;
+    }
+
+    private void register(Path directory) {
+        try {
+            watchedDirectories.put(
+                    directory.register(
+                            watchService,
+                            StandardWatchEventKinds.ENTRY_CREATE,
+                            StandardWatchEventKinds.ENTRY_DELETE,
+                            StandardWatchEventKinds.ENTRY_MODIFY),
+                    directory);
+        } catch (IOException ioe) {
+            LOGGER.warn("unable to watch the directory; {}", directory, ioe);
+        }
+    }
+
+    private record FileState(long size, long modifiedMillis) {
+
+        FileState(BasicFileAttributes attributes) {
+            this(attributes.size(), attributes.lastModifiedTime().toMillis());
+        }
+
+    }
+
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2016-2023, Andrew Lindesay. All Rights Reserved.
+ * Distributed under the terms of the MIT License.
+ *
+ * Authors:
+ *		Andrew Lindesay, apl@lindesay.co.nz
+ */
+
+package nz.co.silvereye.photocat.contactsheet;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import org.jdom2.Document;
+import org.jdom2.Element;
+import org.jdom2.JDOMException;
+import org.jdom2.Namespace;
+import org.jdom2.input.SAXBuilder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * <p>A template may declare the size of the square box in which it places
+ * each thumbnail on the page as a top-level variable;</p>
+ *
+ * <pre>&lt;xsl:variable name="photocatthumbnailsize" select="'1.00in'" /&gt;</pre>
+ *
+ * <p>From this length and a resolution in dots per inch, the maximum width
+ * or height of the thumbnails in pixels can be worked out so that no more
+ * pixels are made than the page is able to show.  The length may be in
+ * inches, centimetres, millimetres, points or picas.</p>
+ */
+
+public final class TemplateThumbnailSize {
+
+    public final static String VARIABLE_NAME = "photocatthumbnailsize";
+
+    private static final Namespace NAMESPACE_XSL = Namespace.getNamespace("http://www.w3.org/1999/XSL/Transform");
+
+    private static final Pattern PATTERN_LENGTH = Pattern.compile("^([0-9]+(?:\\.[0-9]*)?|\\.[0-9]+)\\s*(in|cm|mm|pt|pc)$");
+
+    private TemplateThumbnailSize() {
+    }
+
+    /**
+     * <p>Returns the length of the edge of the box in which the template at
+     * the URL places each thumbnail in inches or NULL if the template does
+     * not declare it.</p>
+     */
+
+    public static Double readInches(URL xslUrl) throws IOException {
+        Preconditions.checkArgument(null!=xslUrl, "the template url must be provided");
+
+        Document document;
+
+        try (InputStream xslIs = xslUrl.openStream()) {
+            document = new SAXBuilder().build(xslIs, xslUrl.toExternalForm());
+        } catch (JDOMException je) {
+            throw new IOException("unable to parse the template; " + xslUrl, je);
+        }
+
+        for (Element variable : document.getRootElement().getChildren("variable", NAMESPACE_XSL)) {
+            if (VARIABLE_NAME.equals(variable.getAttributeValue("name"))) {
+                return parseInches(getValue(variable));
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * <p>The value may be either a string literal in the select attribute
+     * or the text of the variable.</p>
+     */
+
+    private static String getValue(Element variable) {
+        String select = Strings.nullToEmpty(variable.getAttributeValue("select")).trim();
+
+        if (select.length() >= 2
+                && (select.startsWith("'") && select.endsWith("'")
+                || select.startsWith("\"") && select.endsWith("\""))) {
+            return select.substring(1, select.length() - 1);
+        }
+
+        if (!select.isEmpty()) {
+            throw new IllegalStateException("the " + VARIABLE_NAME + " variable must be a literal length; " + select);
+        }
+
+        return variable.getTextTrim();
+    }
+
+    public static double parseInches(String length) {
+        Preconditions.checkArgument(null!=length, "the length must be provided");
+
+        Matcher matcher = PATTERN_LENGTH.matcher(length.trim());
+
+        if (!matcher.matches()) {
+            throw new IllegalStateException("the " + VARIABLE_NAME + " variable is not a length; " + length);
+        }
+
+        double value = Double.parseDouble(matcher.group(1));
+
+        return switch (matcher.group(2)) {
+            case "in" -> value;
+            case "cm" -> value / 2.54;
+            case "mm" -> value / 25.4;
+            case "pt" -> value / 72.0;
+            case "pc" -> value / 6.0;
+            default -> throw new IllegalStateException("unknown unit; " + matcher.group(2));
+        };
+    }
+
+    /**
+     * <p>Returns the pixels needed along the edge of the box to show the
+     * thumbnail at the resolution.  This is not made smaller than the
+     * minimum nor larger than the maximum size of thumbnails.</p>
+     */
+
+    public static int toPixels(double inches, int dotsPerInch) {
+        Preconditions.checkArgument(inches > 0, "the length must be positive");
+        Preconditions.checkArgument(dotsPerInch > 0, "the dots per inch must be positive");
+
+        // a small tolerance stops a length such as 2.54cm that is not quite
+        // an exact number of pixels from being rounded up to the next pixel.
+
+        int pixels = (int) Math.ceil(inches * dotsPerInch - 0.001);
+
+        return Math.max(
+                Constants.MINIMUM_MAXIMUMWIDTHORHEIGHTPIXELS,
+                Math.min(Constants.MAXIMUM_MAXIMUMWIDTHORHEIGHTPIXELS, pixels));
+    }
+
+}
@@ -11,6 +11,12 @@
 		5
 	</xsl:variable>
 
+	<!-- Each thumbnail is fitted into a square box with this edge.  PhotoCat
+		reads this value so that, when it is asked to, it is able to make the
+		thumbnails with just the pixels needed to fill the box. -->
+
+	<xsl:variable name="photocatthumbnailsize" select="'1.00in'" />
+
 	<!-- ======================================================= -->
 	<!-- TABULAR LAYOUT -->
 	<!-- ======================================================= -->
@@ -44,7 +50,8 @@
 						<fo:block>
 							<xsl:choose>
 								<xsl:when test="$files[1]/thumbnailurl">
-									<fo:external-graphic content-width="1.00in"
+									<fo:external-graphic content-width="{$photocatthumbnailsize}"
+										content-height="{$photocatthumbnailsize}" scaling="uniform"
 										border-width="1pt" border-style="solid">
 										<xsl:attribute name="src">
 						 	  	<xsl:value-of select="$files[1]/thumbnailurl" />
@@ -8,7 +8,6 @@
 
 package nz.co.silvereye.photocat.contactsheet.desktop;
 
-import nz.co.silvereye.photocat.JobHelper;
 import nz.co.silvereye.photocat.contactsheet.Constants;
 import nz.co.silvereye.photocat.contactsheet.Job;
 import nz.co.silvereye.photocat.contactsheet.PhotoCatalogueDesktop;
@@ -496,18 +495,8 @@ public class JobSpecificationFrame extends JFrame implements ActionListener {
                     job.setFoTransformUrlXsl(JobSpecificationFrame.class.getResource(Constants.RSRCPATH_DEFAULTXSLT));
                 }
 
-                // prepare the job sources.
-
-                job.addSourceFiles(JobHelper.assembleJobSourceFiles(job));
-
-                if (job.getSourceFiles().isEmpty()) {
-                    validationFailed = true;
-                    JOptionPane.showMessageDialog(
-                            null,
-                            app.getLocalizedStringForKey(Constants.KEY_L_NOSOURCEFILES),
-                            app.getLocalizedStringForKey(Constants.KEY_L_JOBSPECIFICATIONERROR),
-                            JOptionPane.WARNING_MESSAGE);
-                }
+                // the job sources are found from the source directory
+                // as the job runs.
             }
 
             if ((null != job) && !validationFailed)